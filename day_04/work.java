@@ -1,8 +1,18 @@
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.ObjIntConsumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -11,14 +21,6 @@ class Work {
     public static void main(String[] args) {
         String filename = args[0];
 
-        List<String> lines = null;
-        try (Stream<String> linesStream = Files.lines(Path.of(filename))) {
-            lines = linesStream.collect(Collectors.toList());
-        } catch (IOException e) {
-            System.err.println("Could not open file");
-            System.exit(1);
-        }
-
         int part = 1;
         if (args.length > 1) {
             try {
@@ -27,12 +29,68 @@ class Work {
             }
         }
 
+        String mode = "list";
+        if (args.length > 2) {
+            mode = args[2];
+        }
+
+        if (mode.equals("stream")) {
+            streamCount(filename, part);
+            return;
+        }
+
+        if (part == 5) {
+            applyEdits(readLines(filename), args.length > 3 ? args[3] : null);
+            return;
+        }
+
+        // the packed modes fill their grid straight from the file, without a List<String>
+        Viewer v = null;
+        try {
+            switch (mode) {
+                case "list":
+                    v = new Viewer(readLines(filename));
+                    break;
+                case "packed":
+                    v = PackedViewer.read(Path.of(filename), 3);
+                    break;
+                case "compact":
+                    v = TwoBitViewer.compact(Path.of(filename), 3);
+                    break;
+                case "bitboard":
+                    v = new BitboardViewer(readLines(filename));
+                    break;
+                case "parallel":
+                    int parallelism = Runtime.getRuntime().availableProcessors();
+                    if (args.length > 3) {
+                        try {
+                            parallelism = Integer.parseInt(args[3]);
+                        } catch (NumberFormatException ignore) {
+                        }
+                    }
+                    v = new ParallelViewer(PackedViewer.read(Path.of(filename), 3), parallelism);
+                    break;
+                default:
+                    System.err.println("Unknown mode");
+                    System.exit(1);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not open file");
+            System.exit(1);
+        }
+
         switch (part) {
             case 1:
-                partOne(lines);
+                partOne(v);
                 break;
             case 2:
-                partTwo(lines);
+                partTwo(v);
+                break;
+            case 3:
+                searchWords(v, args.length > 3 ? args[3] : null);
+                break;
+            case 4:
+                searchShape(v, args.length > 3 ? args[3] : null);
                 break;
             default:
                 System.err.println("Unknown part");
@@ -40,79 +98,208 @@ class Work {
         }
     }
 
-    private static void partOne(List<String> lines) {
-        int count = 0;
+    private static List<String> readLines(String filename) {
+        List<String> lines = null;
+        try (Stream<String> linesStream = Files.lines(Path.of(filename))) {
+            lines = linesStream.collect(Collectors.toList());
+        } catch (IOException e) {
+            System.err.println("Could not open file");
+            System.exit(1);
+        }
+        return lines;
+    }
+
+    // Size and alphabet of a grid file, read a line at a time so a packed
+    // viewer can be allocated up front and filled in a second pass.
+    static class GridScan {
+        public final Path path;
+        public final int width;
+        public final int height;
+        public final char[] letters; // null with more than TwoBitViewer.MAX_LETTERS
 
-        Viewer v = new Viewer(lines);
-        for (int x = 0; x < v.width; ++x) {
-            for (int y = 0; y < v.height; ++y) {
-                if (v.at(x, y) != 'X')
-                    continue;
+        private GridScan(Path path, int width, int height, char[] letters) {
+            this.path = path;
+            this.width = width;
+            this.height = height;
+            this.letters = letters;
+        }
 
-                final int cx = x;
-                final int cy = y;
-                count += Viewer.Direction.countMatch(dir -> v.inDirection(dir, cx, cy, 4).equals("XMAS"));
+        public static GridScan of(Path path) throws IOException {
+            int width = -1;
+            int height = 0;
+            char[] letters = new char[TwoBitViewer.MAX_LETTERS];
+            int count = 0;
+            try (BufferedReader reader = Files.newBufferedReader(path)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (width < 0) {
+                        width = line.length();
+                    } else if (line.length() != width) {
+                        throw new IllegalArgumentException("Non-rectangular grid");
+                    }
+                    if (count >= 0) {
+                        count = TwoBitViewer.addLetters(letters, count, line);
+                    }
+                    ++height;
+                }
             }
+            return new GridScan(path, Math.max(width, 0), height,
+                    count < 0 ? null : Arrays.copyOf(letters, Math.max(count, 1)));
         }
 
-        System.out.println("Count: " + count);
+        // hands every row to fill with its index, the file must not have changed shape
+        public void fill(ObjIntConsumer<String> fill) throws IOException {
+            try (BufferedReader reader = Files.newBufferedReader(this.path)) {
+                String line;
+                int y = 0;
+                while ((line = reader.readLine()) != null) {
+                    if (y == this.height || line.length() != this.width) {
+                        throw new IllegalArgumentException("Grid changed while reading");
+                    }
+                    fill.accept(line, y++);
+                }
+                if (y != this.height) {
+                    throw new IllegalArgumentException("Grid changed while reading");
+                }
+            }
+        }
     }
 
-    private static void partTwo(List<String> lines) {
-        int count = 0;
+    private static void partOne(Viewer v) {
+        System.out.println("Count: " + v.countWord("XMAS"));
+    }
 
-        Viewer v = new Viewer(lines);
-        for (int x = 0; x < v.width; ++x) {
-            for (int y = 0; y < v.height; ++y) {
-                if (v.at(x, y) != 'A')
-                    continue;
+    private static void partTwo(Viewer v) {
+        System.out.println("Count: " + v.countCross("MAS"));
+    }
 
-                final int cx = x;
-                final int cy = y;
-                int matched = Viewer.Direction.countMatch(false, dir -> {
-                    Viewer.Direction opposite = dir.opposite();
-                    int cdx = opposite.nextX(cx);
-                    int cdy = opposite.nextY(cy);
-                    return v.validPoint(cdx, cdy) && v.inDirection(dir, cdx, cdy, 3).equals("MAS");
-                });
+    private static void streamCount(String filename, int part) {
+        RowStream stream = null;
+        switch (part) {
+            case 1:
+                stream = new RowStream("XMAS", null);
+                break;
+            case 2:
+                stream = new RowStream(null, "MAS");
+                break;
+            default:
+                System.err.println("Unknown part");
+                System.exit(1);
+        }
 
-                if (matched == 2) {
-                    count += 1;
+        try (BufferedReader reader = filename.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in))
+                : Files.newBufferedReader(Path.of(filename))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                stream.accept(line);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not open file");
+            System.exit(1);
+        }
+
+        System.out.println("Count: " + (part == 1 ? stream.getWordCount() : stream.getCrossCount()));
+    }
+
+    private static void applyEdits(List<String> lines, String editsFilename) {
+        if (editsFilename == null) {
+            System.err.println("Expected edits file");
+            System.exit(1);
+        }
+
+        MutableViewer v = new MutableViewer(lines, "XMAS", "MAS");
+        try (Stream<String> editsStream = Files.lines(Path.of(editsFilename))) {
+            editsStream.filter(l -> !l.isEmpty()).forEach(l -> {
+                String[] parts = l.split(",");
+                if (parts.length != 3 || parts[2].length() != 1) {
+                    throw new IllegalArgumentException("Bad edit: " + l);
                 }
+                v.set(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), parts[2].charAt(0));
+            });
+        } catch (IOException e) {
+            System.err.println("Could not open file");
+            System.exit(1);
+        }
+
+        System.out.println("XMAS: " + v.getWordCount());
+        System.out.println("X-MAS: " + v.getCrossCount());
+    }
+
+    private static void searchShape(Viewer v, String shapeFilename) {
+        if (shapeFilename == null) {
+            System.err.println("Expected shape file");
+            System.exit(1);
+        }
+
+        List<String> shape = null;
+        try (Stream<String> shapeStream = Files.lines(Path.of(shapeFilename))) {
+            shape = shapeStream.filter(l -> !l.isEmpty()).collect(Collectors.toList());
+        } catch (IOException e) {
+            System.err.println("Could not open file");
+            System.exit(1);
+        }
+
+        System.out.println("Count: " + v.countShape(shape));
+    }
+
+    private static void searchWords(Viewer v, String wordsFilename) {
+        List<String> words = List.of("XMAS");
+        if (wordsFilename != null) {
+            try (Stream<String> wordsStream = Files.lines(Path.of(wordsFilename))) {
+                words = wordsStream.map(String::strip).filter(w -> !w.isEmpty()).collect(Collectors.toList());
+            } catch (IOException e) {
+                System.err.println("Could not open file");
+                System.exit(1);
             }
         }
 
-        System.out.println("Count: " + count);
+        WordAutomaton automaton = new WordAutomaton(words);
+        long[] counts = automaton.countAll(v);
+
+        long total = 0;
+        for (int i = 0; i < words.size(); ++i) {
+            System.out.println(words.get(i) + ": " + counts[i]);
+            total += counts[i];
+        }
+        System.out.println("Count: " + total);
     }
 
     static class Viewer {
         private final List<String> lines;
-        private final int height;
-        private final int width;
+        protected final int height;
+        protected final int width;
+        private long[] letterCounts;
 
         public Viewer(List<String> lines) {
-            validateLines(lines);
+            this.width = gridWidth(lines);
             this.lines = lines;
             this.height = lines.size();
-            this.width = lines.isEmpty() ? 0 : lines.get(0).length();
         }
 
-        private void validateLines(List<String> lines) {
+        protected Viewer(int width, int height) {
+            this.lines = null;
+            this.height = height;
+            this.width = width;
+        }
+
+        protected static int gridWidth(List<String> lines) {
             Objects.requireNonNull(lines);
             if (lines.isEmpty())
-                return;
+                return 0;
 
             int len = lines.get(0).length();
             if (!lines.stream().allMatch(s -> s.length() == len)) {
                 throw new IllegalArgumentException("Non-rectangular grid");
             }
+            return len;
         }
 
-        private boolean validPoint(int x, int y) {
+        protected boolean validPoint(int x, int y) {
             return (0 <= x && x < this.width) && (0 <= y && y < this.height);
         }
 
-        private char at(int x, int y) {
+        protected char at(int x, int y) {
             if (x < 0 || x >= this.width)
                 throw new IndexOutOfBoundsException("x is invalid");
             if (y < 0 || y >= this.height)
@@ -121,7 +308,92 @@ class Work {
             return this.lines.get(y).charAt(x);
         }
 
-        private String inDirection(Direction dir, int x, int y, int len) {
+        public int countWord(String word) {
+            return countWord(word, 0, this.height);
+        }
+
+        public int countCross(String word) {
+            return countCross(word, 0, this.height);
+        }
+
+        protected void checkRows(int fromY, int toY) {
+            if (fromY < 0 || toY > this.height || fromY > toY)
+                throw new IllegalArgumentException("Row range is invalid");
+        }
+
+        // counts matches anchored in rows [fromY, toY), probes may leave the band
+        public int countWord(String word, int fromY, int toY) {
+            if (word.isEmpty())
+                throw new IllegalArgumentException("Word must be non-empty");
+            checkRows(fromY, toY);
+
+            int count = 0;
+            for (int x = 0; x < this.width; ++x) {
+                for (int y = fromY; y < toY; ++y) {
+                    if (at(x, y) != word.charAt(0))
+                        continue;
+
+                    final int cx = x;
+                    final int cy = y;
+                    count += Direction.countMatch(dir -> inDirection(dir, cx, cy, word.length()).equals(word));
+                }
+            }
+            return count;
+        }
+
+        public int countCross(String word, int fromY, int toY) {
+            if (word.length() != 3)
+                throw new IllegalArgumentException("Cross word must have length 3");
+
+            char fst = word.charAt(0);
+            char mid = word.charAt(1);
+            char lst = word.charAt(2);
+            if (fst != lst)
+                return countShape(List.of(fst + "." + lst, "." + mid + ".", fst + "." + lst), fromY, toY);
+
+            // a palindrome matches both ways along a diagonal, so exactly two
+            // matches means exactly one of the two diagonals
+            int diagonals = countShape(List.of(fst + "..", "." + mid + ".", ".." + lst), fromY, toY);
+            int both = countShape(List.of(fst + "." + fst, "." + mid + ".", fst + "." + fst), fromY, toY);
+            return diagonals - 2 * both;
+        }
+
+        public int countShape(List<String> shape) {
+            return countShape(shape, 0, this.height);
+        }
+
+        // counts every orientation of the shape whose center is in rows [fromY, toY)
+        public int countShape(List<String> shape, int fromY, int toY) {
+            checkRows(fromY, toY);
+
+            int count = 0;
+            for (Stencil stencil : Stencil.orientations(shape, letterCounts())) {
+                count += stencil.count(this, fromY, toY);
+            }
+            return count;
+        }
+
+        protected synchronized void invalidateLetterCounts() {
+            this.letterCounts = null;
+        }
+
+        protected synchronized long[] letterCounts() {
+            if (this.letterCounts == null) {
+                long[] counts = new long[Stencil.ALPHABET_LIMIT];
+                for (int y = 0; y < this.height; ++y) {
+                    for (int x = 0; x < this.width; ++x) {
+                        char ch = at(x, y);
+                        if (ch < counts.length) {
+                            counts[ch] += 1;
+                        }
+                    }
+                }
+                this.letterCounts = counts;
+            }
+            return this.letterCounts;
+        }
+
+        protected String inDirection(Direction dir, int x, int y, int len) {
             Objects.requireNonNull(dir);
             if (len < 0)
                 throw new IllegalArgumentException("Length must be non-negative");
@@ -201,16 +473,971 @@ class Work {
                 }
                 return match;
             }
+        }
+    }
 
-            public static int countMatch(boolean cardinalOnly, Predicate<Direction> test) {
-                int match = 0;
-                for (Direction d : values()) {
-                    if (cardinalOnly == d.cardinal && test.test(d)) {
-                        match += 1;
+    static class PackedViewer extends Viewer {
+        private static final byte BORDER = 0;
+
+        private final byte[] cells;
+        private final int pad;
+        private final int stride;
+        private final int[] steps;
+        private final int[] diagonalSteps;
+
+        public PackedViewer(List<String> lines, int pad) {
+            this(gridWidth(lines), lines.size(), pad);
+            for (int y = 0; y < this.height; ++y) {
+                fillRow(lines.get(y), y);
+            }
+        }
+
+        public static PackedViewer read(Path path, int pad) throws IOException {
+            GridScan scan = GridScan.of(path);
+            PackedViewer v = new PackedViewer(scan.width, scan.height, pad);
+            scan.fill(v::fillRow);
+            return v;
+        }
+
+        // an all-border grid, filled in with fillRow
+        private PackedViewer(int width, int height, int pad) {
+            super(width, height);
+            if (pad < 0)
+                throw new IllegalArgumentException("Pad must be non-negative");
+
+            this.pad = pad;
+            this.stride = this.width + 2 * pad;
+            this.cells = new byte[this.stride * (this.height + 2 * pad)];
+
+            Direction[] dirs = Direction.values();
+            this.steps = new int[dirs.length];
+            this.diagonalSteps = new int[4];
+            int d = 0;
+            for (Direction dir : dirs) {
+                int step = dir.nextY(0) * this.stride + dir.nextX(0);
+                this.steps[dir.ordinal()] = step;
+                if (!dir.cardinal) {
+                    this.diagonalSteps[d++] = step;
+                }
+            }
+        }
+
+        private void fillRow(String line, int y) {
+            int row = index(0, y);
+            for (int x = 0; x < this.width; ++x) {
+                this.cells[row + x] = toCell(line.charAt(x));
+            }
+        }
+
+        protected static byte toCell(char ch) {
+            if (ch == BORDER || ch > 0x7f)
+                throw new IllegalArgumentException("Unsupported character: " + ch);
+            return (byte) ch;
+        }
+
+        protected static byte[] toCells(String word) {
+            byte[] res = new byte[word.length()];
+            for (int i = 0; i < res.length; ++i) {
+                res[i] = toCell(word.charAt(i));
+            }
+            return res;
+        }
+
+        private int index(int x, int y) {
+            return (y + this.pad) * this.stride + (x + this.pad);
+        }
+
+        @Override
+        protected char at(int x, int y) {
+            if (x < 0 || x >= this.width)
+                throw new IndexOutOfBoundsException("x is invalid");
+            if (y < 0 || y >= this.height)
+                throw new IllegalArgumentException("y is invalid");
+
+            return (char) this.cells[index(x, y)];
+        }
+
+        private boolean matches(int i, int step, byte[] word) {
+            for (int k = 0; k < word.length; ++k, i += step) {
+                if (this.cells[i] != word[k])
+                    return false;
+            }
+            return true;
+        }
+
+        private boolean crossAt(int i, byte[] word) {
+            if (this.cells[i] != word[1])
+                return false;
+
+            int matched = 0;
+            for (int step : this.diagonalSteps) {
+                if (matches(i - step, step, word)) {
+                    matched += 1;
+                }
+            }
+            return matched == 2;
+        }
+
+        protected void put(int x, int y, char ch) {
+            byte cell = toCell(ch);
+            if (x < 0 || x >= this.width)
+                throw new IndexOutOfBoundsException("x is invalid");
+            if (y < 0 || y >= this.height)
+                throw new IllegalArgumentException("y is invalid");
+
+            this.cells[index(x, y)] = cell;
+            invalidateLetterCounts();
+        }
+
+        // matches of the word in any direction that pass through (x, y)
+        protected int wordsThrough(int x, int y, byte[] word) {
+            if (word.length - 1 > this.pad)
+                throw new IllegalArgumentException("Word is longer than the border");
+
+            int i = index(x, y);
+            int count = 0;
+            for (int step : this.steps) {
+                for (int k = 0; k < word.length; ++k) {
+                    if (matches(i - k * step, step, word)) {
+                        count += 1;
                     }
                 }
-                return match;
             }
+            return count;
+        }
+
+        // crosses that use (x, y) as their center or one of their corners
+        protected int crossesAround(int x, int y, byte[] word) {
+            if (this.pad < 2)
+                throw new IllegalArgumentException("Border is too thin for crosses");
+
+            int i = index(x, y);
+            int count = crossAt(i, word) ? 1 : 0;
+            for (int step : this.diagonalSteps) {
+                if (crossAt(i + step, word)) {
+                    count += 1;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int countWord(String word, int fromY, int toY) {
+            if (word.length() - 1 > this.pad)
+                return super.countWord(word, fromY, toY);
+            checkRows(fromY, toY);
+
+            byte[] w = toCells(word);
+            int count = 0;
+            for (int y = fromY; y < toY; ++y) {
+                int row = index(0, y);
+                for (int i = row; i < row + this.width; ++i) {
+                    if (this.cells[i] != w[0])
+                        continue;
+
+                    for (int step : this.steps) {
+                        if (matches(i, step, w)) {
+                            count += 1;
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int countCross(String word, int fromY, int toY) {
+            if (word.length() != 3)
+                throw new IllegalArgumentException("Cross word must have length 3");
+            if (this.pad < 1)
+                return super.countCross(word, fromY, toY);
+            checkRows(fromY, toY);
+
+            byte[] w = toCells(word);
+            int count = 0;
+            for (int y = fromY; y < toY; ++y) {
+                int row = index(0, y);
+                for (int i = row; i < row + this.width; ++i) {
+                    if (crossAt(i, w)) {
+                        count += 1;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    static class WordAutomaton {
+        private static final int ALPHABET_LIMIT = 128;
+
+        private final int[] symbols;
+        private final int sigma;
+        private final int states;
+        private final int[] next; // full goto table, states * sigma
+        private final int[] fail;
+        private final int[] order; // states in breadth-first order
+        private final int[] terminals; // final state of each word
+
+        public WordAutomaton(List<String> words) {
+            Objects.requireNonNull(words);
+
+            this.symbols = new int[ALPHABET_LIMIT];
+            Arrays.fill(this.symbols, -1);
+            int sigma = 0;
+            int maxStates = 1;
+            for (String word : words) {
+                if (word.isEmpty())
+                    throw new IllegalArgumentException("Word must be non-empty");
+
+                for (int i = 0; i < word.length(); ++i) {
+                    char ch = word.charAt(i);
+                    if (ch >= ALPHABET_LIMIT)
+                        throw new IllegalArgumentException("Unsupported character: " + ch);
+                    if (this.symbols[ch] < 0) {
+                        this.symbols[ch] = sigma++;
+                    }
+                }
+                maxStates += word.length();
+            }
+            this.sigma = Math.max(sigma, 1);
+
+            int[] trie = new int[maxStates * this.sigma];
+            Arrays.fill(trie, -1);
+            int states = 1;
+            this.terminals = new int[words.size()];
+            for (int w = 0; w < words.size(); ++w) {
+                String word = words.get(w);
+                int cur = 0;
+                for (int i = 0; i < word.length(); ++i) {
+                    int idx = cur * this.sigma + this.symbols[word.charAt(i)];
+                    if (trie[idx] < 0) {
+                        trie[idx] = states++;
+                    }
+                    cur = trie[idx];
+                }
+                this.terminals[w] = cur;
+            }
+
+            this.states = states;
+            this.next = Arrays.copyOf(trie, states * this.sigma);
+            this.fail = new int[states];
+            this.order = new int[states];
+
+            int head = 0;
+            int tail = 0;
+            this.order[tail++] = 0;
+            while (head < tail) {
+                int u = this.order[head++];
+                for (int sym = 0; sym < this.sigma; ++sym) {
+                    int idx = u * this.sigma + sym;
+                    int fallback = u == 0 ? 0 : this.next[this.fail[u] * this.sigma + sym];
+                    int v = this.next[idx];
+                    if (v < 0) {
+                        this.next[idx] = fallback;
+                    } else {
+                        this.fail[v] = fallback;
+                        this.order[tail++] = v;
+                    }
+                }
+            }
+        }
+
+        private int step(int state, char ch) {
+            int sym = ch < ALPHABET_LIMIT ? this.symbols[ch] : -1;
+            return sym < 0 ? 0 : this.next[state * this.sigma + sym];
+        }
+
+        public long[] countAll(Viewer v) {
+            long[] hits = new long[this.states];
+
+            for (Viewer.Direction dir : Viewer.Direction.values()) {
+                Viewer.Direction back = dir.opposite();
+                for (int y = 0; y < v.height; ++y) {
+                    for (int x = 0; x < v.width; ++x) {
+                        if (v.validPoint(back.nextX(x), back.nextY(y)))
+                            continue; // not the start of a ray
+
+                        int state = 0;
+                        int curX = x;
+                        int curY = y;
+                        while (v.validPoint(curX, curY)) {
+                            state = step(state, v.at(curX, curY));
+                            hits[state] += 1;
+                            curX = dir.nextX(curX);
+                            curY = dir.nextY(curY);
+                        }
+                    }
+                }
+            }
+
+            // a position in state u also ends every word along u's failure chain
+            for (int i = this.states - 1; i > 0; --i) {
+                int u = this.order[i];
+                hits[this.fail[u]] += hits[u];
+            }
+
+            long[] counts = new long[this.terminals.length];
+            for (int w = 0; w < counts.length; ++w) {
+                counts[w] = hits[this.terminals[w]];
+            }
+            return counts;
+        }
+    }
+
+    static class ParallelViewer extends Viewer {
+        private static final int BANDS_PER_THREAD = 4;
+
+        private final Viewer inner;
+        private final ForkJoinPool pool;
+        private final int bandRows;
+
+        public ParallelViewer(Viewer inner, int parallelism) {
+            super(inner.width, inner.height);
+            if (parallelism < 1)
+                throw new IllegalArgumentException("Parallelism must be positive");
+
+            this.inner = inner;
+            this.pool = new ForkJoinPool(parallelism);
+            this.bandRows = Math.max(1, (inner.height + parallelism * BANDS_PER_THREAD - 1)
+                    / (parallelism * BANDS_PER_THREAD));
+        }
+
+        @Override
+        protected char at(int x, int y) {
+            return this.inner.at(x, y);
+        }
+
+        @Override
+        public int countWord(String word, int fromY, int toY) {
+            checkRows(fromY, toY);
+            return this.pool.invoke(new Band(fromY, toY, (from, to) -> this.inner.countWord(word, from, to)));
+        }
+
+        @Override
+        public int countCross(String word, int fromY, int toY) {
+            checkRows(fromY, toY);
+            return this.pool.invoke(new Band(fromY, toY, (from, to) -> this.inner.countCross(word, from, to)));
+        }
+
+        @Override
+        public int countShape(List<String> shape, int fromY, int toY) {
+            checkRows(fromY, toY);
+            return this.pool.invoke(new Band(fromY, toY, (from, to) -> this.inner.countShape(shape, from, to)));
+        }
+
+        @FunctionalInterface
+        private interface BandCounter {
+            int count(int fromY, int toY);
+        }
+
+        // owns the anchors in rows [fromY, toY), the len - 1 halo rows above and
+        // below are read straight from the shared grid
+        private class Band extends RecursiveTask<Integer> {
+            private static final long serialVersionUID = 1L;
+
+            private final int fromY;
+            private final int toY;
+            private final BandCounter counter;
+
+            Band(int fromY, int toY, BandCounter counter) {
+                this.fromY = fromY;
+                this.toY = toY;
+                this.counter = counter;
+            }
+
+            @Override
+            protected Integer compute() {
+                if (this.toY - this.fromY <= ParallelViewer.this.bandRows) {
+                    return this.counter.count(this.fromY, this.toY);
+                }
+
+                int mid = (this.fromY + this.toY) >>> 1;
+                Band upper = new Band(this.fromY, mid, this.counter);
+                Band lower = new Band(mid, this.toY, this.counter);
+                upper.fork();
+                return lower.compute() + upper.join();
+            }
+        }
+    }
+
+    // Counts matches as rows arrive, keeping only the last few rows. Every match
+    // is counted once, when its bottom row arrives: directions pointing up are
+    // counted as the reversed word pointing down.
+    static class RowStream {
+        private final char[] word;
+        private final char[] reversed;
+        private final char[] cross;
+        private final String[] window;
+        private int head = -1;
+        private long rows = 0;
+        private int width = -1;
+        private long wordCount = 0;
+        private long crossCount = 0;
+
+        public RowStream(String word, String cross) {
+            if (word != null && word.isEmpty())
+                throw new IllegalArgumentException("Word must be non-empty");
+            if (cross != null && cross.length() != 3)
+                throw new IllegalArgumentException("Cross word must have length 3");
+
+            this.word = word == null ? null : word.toCharArray();
+            this.reversed = word == null ? null : new StringBuilder(word).reverse().toString().toCharArray();
+            this.cross = cross == null ? null : cross.toCharArray();
+            this.window = new String[Math.max(word == null ? 0 : word.length(), cross == null ? 0 : 3)];
+        }
+
+        public long getWordCount() {
+            return this.wordCount;
+        }
+
+        public long getCrossCount() {
+            return this.crossCount;
+        }
+
+        public void accept(String row) {
+            Objects.requireNonNull(row);
+            if (this.width < 0) {
+                this.width = row.length();
+            } else if (row.length() != this.width) {
+                throw new IllegalArgumentException("Non-rectangular grid");
+            }
+
+            if (this.window.length == 0)
+                return;
+
+            this.head = (this.head + 1) % this.window.length;
+            this.window[this.head] = row;
+            this.rows += 1;
+
+            if (this.word != null) {
+                this.wordCount += countEnding(this.word) + countEnding(this.reversed);
+            }
+            if (this.cross != null && this.rows >= 3) {
+                this.crossCount += countCrosses();
+            }
+        }
+
+        // column x of the row that arrived `back` rows before the newest one
+        private char at(int x, int back) {
+            int slot = this.head - back;
+            if (slot < 0) {
+                slot += this.window.length;
+            }
+            return this.window[slot].charAt(x);
+        }
+
+        // matches of w going east, south, southeast or southwest that end in the newest row
+        private long countEnding(char[] w) {
+            int len = w.length;
+            long count = 0;
+
+            for (int x = 0; x + len <= this.width; ++x) {
+                int k = 0;
+                while (k < len && at(x + k, 0) == w[k]) {
+                    ++k;
+                }
+                if (k == len) {
+                    count += 1;
+                }
+            }
+
+            if (this.rows < len)
+                return count;
+
+            for (int x = 0; x < this.width; ++x) {
+                if (at(x, len - 1) != w[0])
+                    continue;
+
+                int south = 1;
+                int southEast = x + len <= this.width ? 1 : 0;
+                int southWest = x - (len - 1) >= 0 ? 1 : 0;
+                for (int k = 1; k < len && (south | southEast | southWest) != 0; ++k) {
+                    int back = len - 1 - k;
+                    if (south != 0 && at(x, back) != w[k]) {
+                        south = 0;
+                    }
+                    if (southEast != 0 && at(x + k, back) != w[k]) {
+                        southEast = 0;
+                    }
+                    if (southWest != 0 && at(x - k, back) != w[k]) {
+                        southWest = 0;
+                    }
+                }
+                count += south + southEast + southWest;
+            }
+            return count;
+        }
+
+        // crosses centered on the row before the newest one
+        private long countCrosses() {
+            char[] c = this.cross;
+            long count = 0;
+            for (int x = 1; x + 1 < this.width; ++x) {
+                if (at(x, 1) != c[1])
+                    continue;
+
+                int matched = 0;
+                if (at(x - 1, 2) == c[0] && at(x + 1, 0) == c[2]) // southeast
+                    matched += 1;
+                if (at(x + 1, 0) == c[0] && at(x - 1, 2) == c[2]) // northwest
+                    matched += 1;
+                if (at(x + 1, 2) == c[0] && at(x - 1, 0) == c[2]) // southwest
+                    matched += 1;
+                if (at(x - 1, 0) == c[0] && at(x + 1, 2) == c[2]) // northeast
+                    matched += 1;
+
+                if (matched == 2) {
+                    count += 1;
+                }
+            }
+            return count;
+        }
+    }
+
+    // One bit plane per letter present in the grid, row by row, so a direction
+    // is matched for 64 anchors at a time with shifts and ANDs.
+    static class BitboardViewer extends Viewer {
+        private static final int ALPHABET_LIMIT = 128;
+
+        private final int rowWords;
+        private final int[] symbols;
+        private final long[][][] planes; // [symbol][y][column / 64]
+
+        public BitboardViewer(List<String> lines) {
+            super(lines);
+            this.rowWords = (this.width + 63) >>> 6;
+            this.symbols = new int[ALPHABET_LIMIT];
+            Arrays.fill(this.symbols, -1);
+
+            int sigma = 0;
+            for (String line : lines) {
+                for (int x = 0; x < line.length(); ++x) {
+                    char ch = line.charAt(x);
+                    if (ch >= ALPHABET_LIMIT)
+                        throw new IllegalArgumentException("Unsupported character: " + ch);
+                    if (this.symbols[ch] < 0) {
+                        this.symbols[ch] = sigma++;
+                    }
+                }
+            }
+
+            this.planes = new long[sigma][this.height][this.rowWords];
+            for (int y = 0; y < this.height; ++y) {
+                String line = lines.get(y);
+                for (int x = 0; x < this.width; ++x) {
+                    this.planes[this.symbols[line.charAt(x)]][y][x >>> 6] |= 1L << x;
+                }
+            }
+        }
+
+        private int symbolOf(char ch) {
+            return ch < ALPHABET_LIMIT ? this.symbols[ch] : -1;
+        }
+
+        // bit x of acc &= bit (x + ox) of src
+        private void andShifted(long[] acc, long[] src, int ox) {
+            int q = Math.floorDiv(ox, 64);
+            int r = Math.floorMod(ox, 64);
+            for (int i = 0; i < acc.length; ++i) {
+                int j = i + q;
+                long lo = (0 <= j && j < src.length) ? src[j] : 0;
+                if (r != 0) {
+                    long hi = (0 <= j + 1 && j + 1 < src.length) ? src[j + 1] : 0;
+                    lo = (lo >>> r) | (hi << (64 - r));
+                }
+                acc[i] &= lo;
+            }
+        }
+
+        // anchors in row y from which the word runs in direction (dx, dy)
+        private boolean lineMask(long[] acc, int[] syms, int y, int dx, int dy, int offset) {
+            int len = syms.length;
+            int start = y - offset * dy;
+            int end = start + (len - 1) * dy;
+            if (start < 0 || start >= this.height || end < 0 || end >= this.height)
+                return false;
+
+            Arrays.fill(acc, -1L);
+            for (int k = 0; k < len; ++k) {
+                andShifted(acc, this.planes[syms[k]][start + k * dy], (k - offset) * dx);
+            }
+            return true;
+        }
+
+        private int[] toSymbols(String word) {
+            int[] syms = new int[word.length()];
+            for (int i = 0; i < syms.length; ++i) {
+                syms[i] = symbolOf(word.charAt(i));
+                if (syms[i] < 0)
+                    return null;
+            }
+            return syms;
+        }
+
+        @Override
+        public int countWord(String word, int fromY, int toY) {
+            if (word.isEmpty())
+                throw new IllegalArgumentException("Word must be non-empty");
+            checkRows(fromY, toY);
+
+            int[] syms = toSymbols(word);
+            if (syms == null)
+                return 0; // some letter never appears in the grid
+
+            long[] acc = new long[this.rowWords];
+            int count = 0;
+            for (Direction dir : Direction.values()) {
+                int dx = dir.nextX(0);
+                int dy = dir.nextY(0);
+                for (int y = fromY; y < toY; ++y) {
+                    if (!lineMask(acc, syms, y, dx, dy, 0))
+                        continue;
+                    for (long bits : acc) {
+                        count += Long.bitCount(bits);
+                    }
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int countCross(String word, int fromY, int toY) {
+            if (word.length() != 3)
+                throw new IllegalArgumentException("Cross word must have length 3");
+            checkRows(fromY, toY);
+
+            int[] syms = toSymbols(word);
+            if (syms == null)
+                return 0;
+
+            long[][] diag = new long[4][this.rowWords];
+            int count = 0;
+            for (int y = fromY; y < toY; ++y) {
+                int d = 0;
+                for (Direction dir : Direction.values()) {
+                    if (dir.cardinal)
+                        continue;
+                    if (!lineMask(diag[d], syms, y, dir.nextX(0), dir.nextY(0), 1)) {
+                        Arrays.fill(diag[d], 0);
+                    }
+                    d += 1;
+                }
+
+                for (int i = 0; i < this.rowWords; ++i) {
+                    long a = diag[0][i];
+                    long b = diag[1][i];
+                    long c = diag[2][i];
+                    long e = diag[3][i];
+                    // exactly two of four: even parity, not none and not all
+                    long two = ~(a ^ b ^ c ^ e) & (a | b | c | e) & ~(a & b & c & e);
+                    count += Long.bitCount(two);
+                }
+            }
+            return count;
+        }
+    }
+
+    // Two bits per cell, row-major, for grids with at most four distinct letters.
+    static class TwoBitViewer extends Viewer {
+        static final int MAX_LETTERS = 4;
+        private static final Direction[] DIRECTIONS = Direction.values();
+
+        private final long[] bits;
+        private final char[] letters; // code -> letter
+
+        // an all-zero grid over letters, filled in with fillRow
+        private TwoBitViewer(int width, int height, char[] letters) {
+            super(width, height);
+            this.letters = letters;
+            if (this.letters == null)
+                throw new IllegalArgumentException("More than " + MAX_LETTERS + " distinct letters");
+
+            long cells = (long) this.width * this.height;
+            this.bits = new long[(int) ((cells + 31) >>> 5)];
+        }
+
+        // two bits per cell when the alphabet allows it, one byte per cell
+        // otherwise, read straight from the file
+        public static Viewer compact(Path path, int pad) throws IOException {
+            GridScan scan = GridScan.of(path);
+            if (scan.letters == null) {
+                PackedViewer v = new PackedViewer(scan.width, scan.height, pad);
+                scan.fill(v::fillRow);
+                return v;
+            }
+            TwoBitViewer v = new TwoBitViewer(scan.width, scan.height, scan.letters);
+            scan.fill(v::fillRow);
+            return v;
+        }
+
+        private void fillRow(String line, int y) {
+            long row = (long) y * this.width;
+            for (int x = 0; x < this.width; ++x) {
+                long idx = row + x;
+                this.bits[(int) (idx >>> 5)] |= (long) codeOf(line.charAt(x)) << ((idx & 31) << 1);
+            }
+        }
+
+        // adds the new letters of line to letters[0 .. count), returns the new
+        // count or -1 once there are more than MAX_LETTERS
+        static int addLetters(char[] letters, int count, String line) {
+            for (int x = 0; x < line.length(); ++x) {
+                char ch = line.charAt(x);
+                int i = 0;
+                while (i < count && letters[i] != ch) {
+                    ++i;
+                }
+                if (i < count)
+                    continue;
+                if (count == MAX_LETTERS)
+                    return -1;
+                letters[count++] = ch;
+            }
+            return count;
+        }
+
+        private int codeOf(char ch) {
+            for (int i = 0; i < this.letters.length; ++i) {
+                if (this.letters[i] == ch)
+                    return i;
+            }
+            return -1;
+        }
+
+        private int[] toCodes(String word) {
+            int[] codes = new int[word.length()];
+            for (int i = 0; i < codes.length; ++i) {
+                codes[i] = codeOf(word.charAt(i));
+                if (codes[i] < 0)
+                    return null;
+            }
+            return codes;
+        }
+
+        private int code(int x, int y) {
+            long idx = (long) y * this.width + x;
+            return (int) (this.bits[(int) (idx >>> 5)] >>> ((idx & 31) << 1)) & 3;
+        }
+
+        @Override
+        protected char at(int x, int y) {
+            if (x < 0 || x >= this.width)
+                throw new IndexOutOfBoundsException("x is invalid");
+            if (y < 0 || y >= this.height)
+                throw new IllegalArgumentException("y is invalid");
+
+            return this.letters[code(x, y)];
+        }
+
+        @Override
+        public int countWord(String word, int fromY, int toY) {
+            if (word.isEmpty())
+                throw new IllegalArgumentException("Word must be non-empty");
+            checkRows(fromY, toY);
+
+            int[] w = toCodes(word);
+            if (w == null)
+                return 0; // some letter never appears in the grid
+
+            int reach = w.length - 1;
+            int count = 0;
+            for (int y = fromY; y < toY; ++y) {
+                for (int x = 0; x < this.width; ++x) {
+                    if (code(x, y) != w[0])
+                        continue;
+
+                    for (Direction dir : DIRECTIONS) {
+                        int dx = dir.nextX(0);
+                        int dy = dir.nextY(0);
+                        if (!validPoint(x + reach * dx, y + reach * dy))
+                            continue;
+
+                        int k = 1;
+                        while (k < w.length && code(x + k * dx, y + k * dy) == w[k]) {
+                            ++k;
+                        }
+                        if (k == w.length) {
+                            count += 1;
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int countCross(String word, int fromY, int toY) {
+            if (word.length() != 3)
+                throw new IllegalArgumentException("Cross word must have length 3");
+            checkRows(fromY, toY);
+
+            int[] w = toCodes(word);
+            if (w == null)
+                return 0;
+
+            int count = 0;
+            for (int y = Math.max(fromY, 1); y < Math.min(toY, this.height - 1); ++y) {
+                for (int x = 1; x + 1 < this.width; ++x) {
+                    if (code(x, y) != w[1])
+                        continue;
+
+                    int matched = 0;
+                    for (Direction dir : DIRECTIONS) {
+                        if (dir.cardinal)
+                            continue;
+
+                        int dx = dir.nextX(0);
+                        int dy = dir.nextY(0);
+                        if (code(x - dx, y - dy) == w[0] && code(x + dx, y + dy) == w[2]) {
+                            matched += 1;
+                        }
+                    }
+
+                    if (matched == 2) {
+                        count += 1;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    // One orientation of a 2D template, compiled to (dx, dy, expected) offsets
+    // from its center cell. Wildcard cells are dropped and the rarest letters
+    // are checked first.
+    static class Stencil {
+        static final int ALPHABET_LIMIT = 128;
+        static final char WILDCARD = '.';
+
+        private final int[] dx;
+        private final int[] dy;
+        private final char[] expected;
+        private final int minX;
+        private final int maxX;
+        private final int minY;
+        private final int maxY;
+
+        private Stencil(int[] dx, int[] dy, char[] expected) {
+            this.dx = dx;
+            this.dy = dy;
+            this.expected = expected;
+            this.minX = Arrays.stream(dx).min().orElse(0);
+            this.maxX = Arrays.stream(dx).max().orElse(0);
+            this.minY = Arrays.stream(dy).min().orElse(0);
+            this.maxY = Arrays.stream(dy).max().orElse(0);
+        }
+
+        // all distinct rotations and reflections of the shape
+        public static List<Stencil> orientations(List<String> shape, long[] letterCounts) {
+            Objects.requireNonNull(shape);
+
+            int cy = (shape.size() - 1) / 2;
+            int cx = (shape.stream().mapToInt(String::length).max().orElse(0) - 1) / 2;
+
+            List<int[]> cells = new ArrayList<>(); // {x, y, ch}
+            for (int y = 0; y < shape.size(); ++y) {
+                String row = shape.get(y);
+                for (int x = 0; x < row.length(); ++x) {
+                    char ch = row.charAt(x);
+                    if (ch != WILDCARD && !Character.isWhitespace(ch)) {
+                        cells.add(new int[] { x - cx, y - cy, ch });
+                    }
+                }
+            }
+            if (cells.isEmpty())
+                throw new IllegalArgumentException("Shape has no cells");
+
+            // rarest letter first, ties keep reading order
+            cells.sort(Comparator.comparingLong(c -> c[2] < letterCounts.length ? letterCounts[c[2]] : 0));
+
+            List<Stencil> res = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            for (int t = 0; t < 8; ++t) {
+                int n = cells.size();
+                int[] dx = new int[n];
+                int[] dy = new int[n];
+                char[] expected = new char[n];
+                String[] keys = new String[n];
+                for (int i = 0; i < n; ++i) {
+                    int[] c = cells.get(i);
+                    int x = (t & 4) != 0 ? -c[0] : c[0];
+                    int y = c[1];
+                    for (int r = 0; r < (t & 3); ++r) {
+                        int tmp = x;
+                        x = -y;
+                        y = tmp;
+                    }
+                    dx[i] = x;
+                    dy[i] = y;
+                    expected[i] = (char) c[2];
+                    keys[i] = x + "," + y + "=" + (char) c[2];
+                }
+
+                Arrays.sort(keys);
+                if (seen.add(String.join(";", keys))) {
+                    res.add(new Stencil(dx, dy, expected));
+                }
+            }
+            return res;
+        }
+
+        public int count(Viewer v, int fromY, int toY) {
+            int count = 0;
+            int n = this.expected.length;
+            for (int y = Math.max(fromY, -this.minY); y < Math.min(toY, v.height - this.maxY); ++y) {
+                for (int x = -this.minX; x < v.width - this.maxX; ++x) {
+                    int k = 0;
+                    while (k < n && v.at(x + this.dx[k], y + this.dy[k]) == this.expected[k]) {
+                        ++k;
+                    }
+                    if (k == n) {
+                        count += 1;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    // Packed grid that keeps its word and cross totals current across edits by
+    // recounting only the matches that can pass through the edited cell.
+    static class MutableViewer extends PackedViewer {
+        private final byte[] word;
+        private final byte[] cross;
+        private long wordCount;
+        private long crossCount;
+
+        public MutableViewer(List<String> lines, String word, String cross) {
+            super(lines, Math.max(word.length() - 1, 2));
+            if (word.isEmpty())
+                throw new IllegalArgumentException("Word must be non-empty");
+            if (cross.length() != 3)
+                throw new IllegalArgumentException("Cross word must have length 3");
+
+            this.word = toCells(word);
+            this.cross = toCells(cross);
+            this.wordCount = countWord(word);
+            this.crossCount = countCross(cross);
+        }
+
+        public long getWordCount() {
+            return this.wordCount;
+        }
+
+        public long getCrossCount() {
+            return this.crossCount;
+        }
+
+        public void set(int x, int y, char ch) {
+            if (at(x, y) == ch)
+                return;
+
+            toCell(ch); // reject before touching the totals
+            this.wordCount -= wordsThrough(x, y, this.word);
+            this.crossCount -= crossesAround(x, y, this.cross);
+            put(x, y, ch);
+            this.wordCount += wordsThrough(x, y, this.word);
+            this.crossCount += crossesAround(x, y, this.cross);
         }
     }
 }
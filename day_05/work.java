@@ -1,29 +1,26 @@
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 class Work {
     public static void main(String[] args) {
         String filename = args[0];
 
-        List<String> lines = null;
-        try (Stream<String> linesStream = Files.lines(Path.of(filename))) {
-            lines = linesStream.collect(Collectors.toList());
-        } catch (IOException e) {
-            System.err.println("Could not open file");
-            System.exit(1);
-        }
-
         int part = 1;
         if (args.length > 1) {
             try {
@@ -32,114 +29,1066 @@ class Work {
             }
         }
 
-        switch (part) {
-            case 1:
-                partOne(lines);
-                break;
-            case 2:
-                partTwo(lines);
-                break;
-            default:
-                System.err.println("Unknown part");
-                System.exit(1);
+        String mode = "direct";
+        if (args.length > 2) {
+            mode = args[2];
+        }
+
+        try (UpdateTokenizer in = new UpdateTokenizer(Files.newInputStream(Path.of(filename)))) {
+            switch (mode) {
+                case "direct":
+                case "closure":
+                    boolean closure = mode.equals("closure");
+                    switch (part) {
+                        case 1:
+                            partOne(in, closure);
+                            break;
+                        case 2:
+                            partTwo(in, closure);
+                            break;
+                        default:
+                            System.err.println("Unknown part");
+                            System.exit(1);
+                    }
+                    break;
+                case "live":
+                    live(in, part, args.length > 3 ? args[3] : null);
+                    break;
+                case "pipeline":
+                    int workers = Runtime.getRuntime().availableProcessors();
+                    if (args.length > 3) {
+                        try {
+                            workers = Integer.parseInt(args[3]);
+                        } catch (NumberFormatException ignore) {
+                        }
+                    }
+                    pipeline(in, part, workers);
+                    break;
+                default:
+                    System.err.println("Unknown mode");
+                    System.exit(1);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not open file");
+            System.exit(1);
         }
     }
 
-    private static void partOne(List<String> lines) {
-        lines.stream().filter(line -> line.indexOf('|') >= 0).forEach(Work::processDependency);
-        long res = lines.stream().filter(line -> line.length() > 0 && line.indexOf('|') < 0)
-                .map(s -> Arrays.asList(s.split(",")).stream().map(Long::parseLong).collect(Collectors.toList()))
-                .filter(Work::isValid)
-                .mapToLong(Work::middle).sum();
+    private static void partOne(UpdateTokenizer in, boolean closure) throws IOException {
+        Ordering rules = readRules(in, closure);
+        Validator validator = new Validator(rules);
+        int[] ids = new int[16];
+
+        long res = 0;
+        for (int len = in.nextUpdate(); len >= 0; len = in.nextUpdate()) {
+            int[] pages = in.pages();
+            ids = toIds(rules, pages, len, ids);
+            if (validator.isValid(ids, len)) {
+                res += pages[middle(len)];
+            }
+        }
 
         System.out.println("Res: " + res);
     }
 
-    private static void partTwo(List<String> lines) {
-        lines.stream().filter(line -> line.indexOf('|') >= 0).forEach(Work::processDependency);
+    private static void partTwo(UpdateTokenizer in, boolean closure) throws IOException {
+        Ordering rules = readRules(in, closure);
+        Validator validator = new Validator(rules);
+        Sorter sorter = new Sorter(rules);
+        int[] ids = new int[16];
 
-        long res = lines.stream().filter(line -> line.length() > 0 && line.indexOf('|') < 0)
-                .map(s -> Arrays.asList(s.split(",")).stream().map(Long::parseLong).collect(Collectors.toList()))
-                .filter(Predicate.not(Work::isValid))
-                .map(Work::toOrdered)
-                .mapToLong(Work::middle).sum();
+        long res = 0;
+        for (int len = in.nextUpdate(); len >= 0; len = in.nextUpdate()) {
+            int[] pages = in.pages();
+            ids = toIds(rules, pages, len, ids);
+            if (!validator.isValid(ids, len)) {
+                res += pages[sorter.order(ids, len)[middle(len)]];
+            }
+        }
 
         System.out.println("Res: " + res);
     }
 
-    private static void processDependency(String line) {
-        String[] parts = line.split("\\|");
+    private static Ordering readRules(UpdateTokenizer in, boolean closure) throws IOException {
+        Rules rules = new Rules();
+        int count = in.readRules();
+        int[] pairs = in.rulePairs();
+        for (int i = 0; i < count; ++i) {
+            rules.add(pairs[2 * i], pairs[2 * i + 1]);
+        }
+        if (!closure) {
+            return rules;
+        }
 
-        if (parts.length != 2) {
-            throw new IllegalStateException("More than one thing...");
+        // a cycle collapses its pages into each other in the closure, so
+        // only the direct rules can still be checked against
+        RuleIndex index = new RuleIndex(rules);
+        if (index.hasCycles()) {
+            for (List<Long> cycle : index.getCycles()) {
+                System.err.println("Cyclic rules between pages " + cycle);
+            }
+            System.err.println("Falling back to the direct rules");
+            return rules;
         }
+        return index;
+    }
 
-        long fst = Long.parseLong(parts[0]);
-        long snd = Long.parseLong(parts[1]);
+    // replays "+X|Y" / "-X|Y" rule changes, printing the running result after each
+    // updates that the current rules make cyclic are in neither sum, so they are counted separately
+    private static void printLive(LiveUpdates updates, int part) {
+        long res = part == 1 ? updates.getValidSum() : updates.getReorderedSum();
+        System.out.println("Res: " + res + " (unorderable: " + updates.getUnorderable() + ")");
+    }
 
-        Dependency.forNumber(snd).mustComeAfter(Dependency.forNumber(fst));
+    private static void live(UpdateTokenizer in, int part, String changesFilename) throws IOException {
+        if (part != 1 && part != 2) {
+            System.err.println("Unknown part");
+            System.exit(1);
+        }
+        if (changesFilename == null) {
+            System.err.println("Expected rule changes file");
+            System.exit(1);
+        }
+
+        LiveUpdates updates = new LiveUpdates((Rules) readRules(in, false));
+        for (int len = in.nextUpdate(); len >= 0; len = in.nextUpdate()) {
+            updates.addUpdate(in.pages(), len);
+        }
+
+        printLive(updates, part);
+        try (Stream<String> changes = Files.lines(Path.of(changesFilename))) {
+            changes.filter(line -> line.length() > 0).forEach(line -> {
+                String[] parts = line.substring(1).split("\\|");
+                if (parts.length != 2 || (line.charAt(0) != '+' && line.charAt(0) != '-')) {
+                    throw new IllegalArgumentException("Bad rule change: " + line);
+                }
+
+                long fst = Long.parseLong(parts[0]);
+                long snd = Long.parseLong(parts[1]);
+                if (line.charAt(0) == '+') {
+                    updates.addRule(fst, snd);
+                } else {
+                    updates.removeRule(fst, snd);
+                }
+                printLive(updates, part);
+            });
+        }
     }
 
-    private static boolean isValid(List<Long> numbers) {
-        int size = numbers.size();
-        for (int i = 0; i < size; ++i) {
-            long iNum = numbers.get(i);
-            for (int j = i + 1; j < size; ++j) {
-                long jNum = numbers.get(j);
-                if (Dependency.forNumber(iNum).doesComeAfter(Dependency.forNumber(jNum))) {
-                    return false;
+    private static void pipeline(UpdateTokenizer in, int part, int workers) throws IOException {
+        if (part != 1 && part != 2) {
+            System.err.println("Unknown part");
+            System.exit(1);
+        }
+
+        UpdatePipeline pipeline = new UpdatePipeline(readRules(in, false), workers, part == 2);
+        System.out.println("Res: " + pipeline.run(in));
+    }
+
+    private static int[] toIds(Ordering rules, int[] pages, int len, int[] ids) {
+        int[] res = ids.length < len ? new int[pages.length] : ids;
+        for (int i = 0; i < len; ++i) {
+            res[i] = rules.idOf(pages[i]);
+        }
+        return res;
+    }
+
+    private static int middle(int len) {
+        if (len % 2 == 0) {
+            throw new IllegalStateException("Even sized list");
+        }
+        return (len - 1) / 2;
+    }
+
+    // Page ids with "a must come after b" stored as bit b of afterRow(a), and
+    // the transposed relation in beforeRow.
+    interface Ordering {
+        int size();
+
+        int idOf(long page);
+
+        long pageOf(int id);
+
+        // rows are shared, not copied, and cover at least size() bits
+        long[] afterRow(int id);
+
+        long[] beforeRow(int id);
+
+        default boolean mustComeAfter(int a, int b) {
+            return a >= 0 && b >= 0 && (afterRow(a)[b >>> 6] & (1L << b)) != 0;
+        }
+    }
+
+    // One rule set. Pages are interned to dense ids and "a must come after b"
+    // is bit b of row a, so a lookup is a single bit test.
+    static class Rules implements Ordering {
+        private static final int SMALL_PAGES = 1 << 16;
+
+        private final Map<Long, Integer> ids = new HashMap<>(); // pages past SMALL_PAGES
+        private int[] smallIds = new int[128]; // page -> id + 1, 0 when unknown
+        private long[] pages = new long[64]; // id -> page number
+        private long[][] after = new long[64][1]; // the ids that each id has to come after
+        private long[][] before = new long[64][1]; // the ids that each id has to come before
+        private int size = 0;
+
+        public int size() {
+            return this.size;
+        }
+
+        public long pageOf(int id) {
+            return this.pages[id];
+        }
+
+        public int idOf(long page) {
+            if (0 <= page && page < SMALL_PAGES) {
+                return page < this.smallIds.length ? this.smallIds[(int) page] - 1 : -1;
+            }
+            Integer id = this.ids.get(page);
+            return id == null ? -1 : id;
+        }
+
+        public int intern(long page) {
+            int id = idOf(page);
+            if (id >= 0) {
+                return id;
+            }
+
+            if (this.size == this.pages.length) {
+                grow();
+            }
+            this.pages[this.size] = page;
+            if (0 <= page && page < SMALL_PAGES) {
+                if (page >= this.smallIds.length) {
+                    this.smallIds = Arrays.copyOf(this.smallIds,
+                            (int) Math.min(SMALL_PAGES, Math.max(page + 1, 2L * this.smallIds.length)));
                 }
+                this.smallIds[(int) page] = this.size + 1;
+            } else {
+                this.ids.put(page, this.size);
             }
+            return this.size++;
+        }
+
+        private void grow() {
+            int capacity = this.pages.length * 2;
+            int words = (capacity + 63) >>> 6;
+            this.pages = Arrays.copyOf(this.pages, capacity);
+            this.after = grow(this.after, capacity, words);
+            this.before = grow(this.before, capacity, words);
+        }
+
+        private static long[][] grow(long[][] matrix, int capacity, int words) {
+            long[][] res = Arrays.copyOf(matrix, capacity);
+            for (int i = 0; i < capacity; ++i) {
+                res[i] = res[i] == null ? new long[words] : Arrays.copyOf(res[i], words);
+            }
+            return res;
+        }
+
+        // before|after: the page `before` has to be printed before `after`
+        public boolean add(long before, long after) {
+            int b = intern(before);
+            int a = intern(after);
+            if (mustComeAfter(a, b)) {
+                return false;
+            }
+            this.after[a][b >>> 6] |= 1L << b;
+            this.before[b][a >>> 6] |= 1L << a;
+            return true;
+        }
+
+        public boolean remove(long before, long after) {
+            int b = idOf(before);
+            int a = idOf(after);
+            if (!mustComeAfter(a, b)) {
+                return false;
+            }
+            this.after[a][b >>> 6] &= ~(1L << b);
+            this.before[b][a >>> 6] &= ~(1L << a);
+            return true;
+        }
+
+        @Override
+        public long[] afterRow(int id) {
+            return this.after[id];
+        }
+
+        @Override
+        public long[] beforeRow(int id) {
+            return this.before[id];
         }
-        return true;
     }
 
-    private static List<Long> toOrdered(List<Long> in) {
-        int size = in.size();
-        List<Long> res = new ArrayList<>(size);
+    // Transitive closure of a rule set, built once. Strongly connected
+    // components are found with an iterative Tarjan walk over the bitset rows;
+    // Tarjan finishes components in reverse topological order, so each
+    // component's closure is the word-parallel OR of its successors' closures,
+    // which are already complete. Any component with more than one page, or a
+    // page that must come after itself, is a cycle.
+    static class RuleIndex implements Ordering {
+        private final Rules rules;
+        private final int size;
+        private final long[][] after; // shared by the pages of a component
+        private final long[][] before;
+        private final List<List<Long>> cycles = new ArrayList<>();
+
+        public RuleIndex(Rules rules) {
+            this.rules = rules;
+            this.size = rules.size();
+            int n = this.size;
+            int words = (n + 63) >>> 6;
+
+            int[] index = new int[n];
+            int[] low = new int[n];
+            int[] comp = new int[n];
+            boolean[] onStack = new boolean[n];
+            int[] stack = new int[n];
+            int[] callNode = new int[n];
+            int[] callWord = new int[n];
+            long[] callBits = new long[n];
+            Arrays.fill(index, -1);
+            Arrays.fill(comp, -1);
+            List<long[]> reach = new ArrayList<>();
+
+            int counter = 0;
+            int sp = 0;
+            for (int root = 0; root < n; ++root) {
+                if (index[root] >= 0)
+                    continue;
+
+                int csp = 0;
+                index[root] = low[root] = counter++;
+                stack[sp++] = root;
+                onStack[root] = true;
+                callNode[csp] = root;
+                callWord[csp] = 0;
+                callBits[csp] = words > 0 ? rules.afterRow(root)[0] : 0;
+                ++csp;
+
+                while (csp > 0) {
+                    int top = csp - 1;
+                    int v = callNode[top];
+                    while (callBits[top] == 0 && callWord[top] + 1 < words) {
+                        callWord[top] += 1;
+                        callBits[top] = rules.afterRow(v)[callWord[top]];
+                    }
+
+                    if (callBits[top] != 0) {
+                        int w = (callWord[top] << 6) + Long.numberOfTrailingZeros(callBits[top]);
+                        callBits[top] &= callBits[top] - 1;
+                        if (index[w] < 0) {
+                            index[w] = low[w] = counter++;
+                            stack[sp++] = w;
+                            onStack[w] = true;
+                            callNode[csp] = w;
+                            callWord[csp] = 0;
+                            callBits[csp] = rules.afterRow(w)[0];
+                            ++csp;
+                        } else if (onStack[w]) {
+                            low[v] = Math.min(low[v], index[w]);
+                        }
+                        continue;
+                    }
 
-        for (int i = 0; i < size; ++i) {
-            res.add(i, in.get(i));
-            for (int j = i; j >= 0; --j) {
-                for (int k = 0; k < j && !isValid(res.subList(0, i + 1)); ++k) {
-                    long tmp = res.get(j - k);
-                    res.set(j - k, res.get(j - (k + 1)));
-                    res.set(j - (k + 1), tmp);
+                    --csp;
+                    if (csp > 0) {
+                        int parent = callNode[csp - 1];
+                        low[parent] = Math.min(low[parent], low[v]);
+                    }
+                    if (low[v] != index[v])
+                        continue;
+
+                    int c = reach.size();
+                    int first = sp;
+                    do {
+                        --first;
+                        onStack[stack[first]] = false;
+                        comp[stack[first]] = c;
+                    } while (stack[first] != v);
+
+                    long[] closure = new long[words];
+                    for (int k = first; k < sp; ++k) {
+                        long[] row = rules.afterRow(stack[k]);
+                        for (int wd = 0; wd < words; ++wd) {
+                            long bits = row[wd];
+                            closure[wd] |= bits;
+                            while (bits != 0) {
+                                int w = (wd << 6) + Long.numberOfTrailingZeros(bits);
+                                bits &= bits - 1;
+                                if (comp[w] != c) {
+                                    long[] other = reach.get(comp[w]);
+                                    for (int x = 0; x < words; ++x) {
+                                        closure[x] |= other[x];
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    reach.add(closure);
+
+                    if (sp - first > 1 || rules.mustComeAfter(v, v)) {
+                        List<Long> cycle = new ArrayList<>();
+                        for (int k = first; k < sp; ++k) {
+                            cycle.add(rules.pageOf(stack[k]));
+                        }
+                        this.cycles.add(cycle);
+                    }
+                    sp = first;
+                }
+            }
+
+            this.after = new long[n][];
+            this.before = new long[n][words];
+            for (int a = 0; a < n; ++a) {
+                this.after[a] = reach.get(comp[a]);
+                for (int wd = 0; wd < words; ++wd) {
+                    long bits = this.after[a][wd];
+                    while (bits != 0) {
+                        int b = (wd << 6) + Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                        this.before[b][a >>> 6] |= 1L << a;
+                    }
                 }
             }
         }
-        return res;
+
+        public boolean hasCycles() {
+            return !this.cycles.isEmpty();
+        }
+
+        public List<List<Long>> getCycles() {
+            return this.cycles;
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        // pages interned into the rules after the index was built are unconstrained
+        @Override
+        public int idOf(long page) {
+            int id = this.rules.idOf(page);
+            return id < this.size ? id : -1;
+        }
+
+        @Override
+        public long pageOf(int id) {
+            return this.rules.pageOf(id);
+        }
+
+        @Override
+        public long[] afterRow(int id) {
+            return this.after[id];
+        }
+
+        @Override
+        public long[] beforeRow(int id) {
+            return this.before[id];
+        }
     }
 
-    private static long middle(List<Long> numbers) {
-        int size = numbers.size();
-        if (size % 2 == 0) {
-            throw new IllegalStateException("Even sized list");
+    // Presence bitset and id -> index map of the update being checked. The
+    // scratch space is reused between updates, so instances are not
+    // thread-safe.
+    abstract static class UpdateIndex {
+        protected final Ordering rules;
+        protected long[] present = new long[0]; // ids in the current update
+        protected int[] position = new int[0]; // id -> index in the current update
+        protected int words;
+
+        protected UpdateIndex(Ordering rules) {
+            this.rules = rules;
+        }
+
+        public Ordering getRules() {
+            return this.rules;
+        }
+
+        // returns the id of a repeated page, keeping its first position, or -1
+        protected int index(int[] ids, int len) {
+            this.words = (this.rules.size() + 63) >>> 6;
+            if (this.present.length < this.words) {
+                this.present = new long[this.words];
+            }
+            if (this.position.length < this.rules.size()) {
+                this.position = new int[this.rules.size()];
+            }
+
+            int repeated = -1;
+            for (int i = 0; i < len; ++i) {
+                int id = ids[i];
+                if (id < 0)
+                    continue;
+                if ((this.present[id >>> 6] & (1L << id)) != 0) {
+                    repeated = id;
+                    continue;
+                }
+                this.present[id >>> 6] |= 1L << id;
+                this.position[id] = i;
+            }
+            return repeated;
+        }
+
+        protected void clear(int[] ids, int len) {
+            for (int i = 0; i < len; ++i) {
+                if (ids[i] >= 0) {
+                    this.present[ids[i] >>> 6] = 0;
+                }
+            }
         }
-        return numbers.get((size - 1) / 2);
     }
 
-    static class Dependency {
-        private static final Map<Long, Dependency> allDeps = new HashMap<>();
+    static class Violation {
+        public final int first; // index of the page that is too early
+        public final int second; // index of the page it has to come after
 
-        private final long number; // this number
-        private final Set<Long> dependencies; // the numbers that it has to come after
+        public Violation(int first, int second) {
+            this.first = first;
+            this.second = second;
+        }
+    }
 
-        private Dependency(long number) {
-            this.number = number;
-            this.dependencies = new HashSet<>();
+    // Checks an update by walking only the rules between its own pages.
+    static class Validator extends UpdateIndex {
+        public Validator(Ordering rules) {
+            super(rules);
         }
 
-        public static Dependency forNumber(long number) {
-            return allDeps.computeIfAbsent(number, Dependency::new);
+        // the violating pair with the smallest first index, then smallest second index
+        public Violation firstViolation(int[] ids, int len) {
+            if (index(ids, len) >= 0) {
+                clear(ids, len);
+                return firstViolationByPairs(ids, len);
+            }
+            try {
+                for (int i = 0; i < len; ++i) {
+                    if (ids[i] < 0)
+                        continue;
+
+                    int second = -1;
+                    long[] row = this.rules.afterRow(ids[i]);
+                    for (int w = 0; w < this.words; ++w) {
+                        long bits = row[w] & this.present[w];
+                        while (bits != 0) {
+                            int j = this.position[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                            bits &= bits - 1;
+                            if (j > i && (second < 0 || j < second)) {
+                                second = j;
+                            }
+                        }
+                    }
+
+                    if (second >= 0) {
+                        return new Violation(i, second);
+                    }
+                }
+                return null;
+            } finally {
+                clear(ids, len);
+            }
+        }
+
+        // repeated pages have more than one position, so check every pair
+        private Violation firstViolationByPairs(int[] ids, int len) {
+            for (int i = 0; i < len; ++i) {
+                for (int j = i + 1; j < len; ++j) {
+                    if (this.rules.mustComeAfter(ids[i], ids[j])) {
+                        return new Violation(i, j);
+                    }
+                }
+            }
+            return null;
         }
 
-        public boolean doesComeAfter(Dependency other) {
-            return this.dependencies.contains(other.number);
+        public boolean isValid(int[] ids, int len) {
+            return firstViolation(ids, len) == null;
         }
+    }
+
+    // Orders an update with Kahn's algorithm over the rules induced by its pages.
+    static class Sorter extends UpdateIndex {
+        private int[] indegree = new int[0];
+        private int[] queue = new int[0];
+
+        public Sorter(Ordering rules) {
+            super(rules);
+        }
+
+        // the update's indices in a rule-respecting order, unknown pages (-1) are unconstrained
+        public int[] order(int[] ids, int len) {
+            if (this.indegree.length < len) {
+                this.indegree = new int[len];
+                this.queue = new int[len];
+            }
+
+            int repeated = index(ids, len);
+            if (repeated >= 0) {
+                clear(ids, len);
+                throw new IllegalArgumentException("Duplicate page " + this.rules.pageOf(repeated));
+            }
+            try {
+                int head = 0;
+                int tail = 0;
+                for (int i = 0; i < len; ++i) {
+                    int degree = 0;
+                    if (ids[i] >= 0) {
+                        long[] row = this.rules.afterRow(ids[i]);
+                        for (int w = 0; w < this.words; ++w) {
+                            degree += Long.bitCount(row[w] & this.present[w]);
+                        }
+                    }
+                    this.indegree[i] = degree;
+                    if (degree == 0) {
+                        this.queue[tail++] = i;
+                    }
+                }
+
+                while (head < tail) {
+                    int i = this.queue[head++];
+                    if (ids[i] < 0)
+                        continue;
+
+                    long[] row = this.rules.beforeRow(ids[i]);
+                    for (int w = 0; w < this.words; ++w) {
+                        long bits = row[w] & this.present[w];
+                        while (bits != 0) {
+                            int next = this.position[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                            bits &= bits - 1;
+                            if (--this.indegree[next] == 0) {
+                                this.queue[tail++] = next;
+                            }
+                        }
+                    }
+                }
+
+                if (tail < len) {
+                    List<Long> cycle = new ArrayList<>();
+                    for (int i = 0; i < len; ++i) {
+                        if (this.indegree[i] > 0) {
+                            cycle.add(this.rules.pageOf(ids[i]));
+                        }
+                    }
+                    throw new IllegalStateException("Rules are cyclic, cannot order pages " + cycle);
+                }
+                return Arrays.copyOf(this.queue, len);
+            } finally {
+                clear(ids, len);
+            }
+        }
+    }
+
+    // Streams updates in fixed-size chunks through a bounded queue to a pool
+    // of workers. Chunks are flat int buffers recycled through a free list.
+    // Each worker owns its Validator, Sorter and id buffer and keeps its own
+    // middle-page sum, so memory stays bounded by the chunk count.
+    static class UpdatePipeline {
+        private static final int CHUNK_UPDATES = 4096;
+        private static final int CHUNK_PAGES = CHUNK_UPDATES * 24;
+        private static final Chunk DONE = new Chunk();
+
+        private final Ordering rules;
+        private final int workers;
+        private final boolean reorder; // sum reordered invalid updates instead of valid ones
+
+        private static class Chunk {
+            private int[] pages = new int[CHUNK_PAGES];
+            private final int[] ends = new int[CHUNK_UPDATES]; // end offset of each update in pages
+            private int count = 0;
+            private int size = 0;
+        }
+
+        public UpdatePipeline(Ordering rules, int workers, boolean reorder) {
+            if (workers < 1)
+                throw new IllegalArgumentException("Need at least one worker");
+
+            this.rules = rules;
+            this.workers = workers;
+            this.reorder = reorder;
+        }
+
+        // consumes the remaining updates of the tokenizer
+        public long run(UpdateTokenizer in) throws IOException {
+            int chunks = this.workers * 3 + 1; // queued, in work, and being filled
+            BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(chunks + this.workers);
+            BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(chunks);
+            for (int i = 0; i < chunks; ++i) {
+                free.add(new Chunk());
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(this.workers);
+            try {
+                List<Future<Long>> sums = new ArrayList<>();
+                for (int i = 0; i < this.workers; ++i) {
+                    sums.add(pool.submit(() -> work(full, free)));
+                }
+
+                Chunk chunk = take(free, sums);
+                for (int len = in.nextUpdate(); len >= 0; len = in.nextUpdate()) {
+                    if (chunk.count == chunk.ends.length || chunk.size + len > chunk.pages.length) {
+                        if (chunk.count > 0) {
+                            put(full, chunk, sums);
+                            chunk = take(free, sums);
+                        }
+                        if (len > chunk.pages.length) {
+                            chunk.pages = new int[len];
+                        }
+                    }
+                    System.arraycopy(in.pages(), 0, chunk.pages, chunk.size, len);
+                    chunk.size += len;
+                    chunk.ends[chunk.count++] = chunk.size;
+                }
+                if (chunk.count > 0) {
+                    put(full, chunk, sums);
+                }
+                for (int i = 0; i < this.workers; ++i) {
+                    put(full, DONE, sums);
+                }
+
+                long total = 0;
+                for (Future<Long> sum : sums) {
+                    total += sum.get();
+                }
+                return total;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Worker failed", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        // the blocking queue operations give up once a worker has died
+        private static void put(BlockingQueue<Chunk> queue, Chunk chunk, List<Future<Long>> sums)
+                throws InterruptedException, ExecutionException {
+            while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                checkWorkers(sums);
+            }
+        }
+
+        private static Chunk take(BlockingQueue<Chunk> queue, List<Future<Long>> sums)
+                throws InterruptedException, ExecutionException {
+            Chunk chunk;
+            while ((chunk = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                checkWorkers(sums);
+            }
+            return chunk;
+        }
+
+        private static void checkWorkers(List<Future<Long>> sums) throws InterruptedException, ExecutionException {
+            for (Future<Long> sum : sums) {
+                if (sum.isDone()) {
+                    sum.get();
+                    throw new IllegalStateException("Worker stopped early");
+                }
+            }
+        }
+
+        private long work(BlockingQueue<Chunk> full, BlockingQueue<Chunk> free) throws InterruptedException {
+            Validator validator = new Validator(this.rules);
+            Sorter sorter = new Sorter(this.rules);
+            int[] ids = new int[16];
+
+            long sum = 0;
+            for (Chunk chunk = full.take(); chunk != DONE; chunk = full.take()) {
+                int start = 0;
+                for (int u = 0; u < chunk.count; ++u) {
+                    int end = chunk.ends[u];
+                    int len = end - start;
+                    if (ids.length < len) {
+                        ids = new int[len];
+                    }
+                    for (int i = 0; i < len; ++i) {
+                        ids[i] = this.rules.idOf(chunk.pages[start + i]);
+                    }
+
+                    boolean valid = validator.isValid(ids, len);
+                    if (!this.reorder && valid) {
+                        sum += chunk.pages[start + middle(len)];
+                    } else if (this.reorder && !valid) {
+                        sum += chunk.pages[start + sorter.order(ids, len)[middle(len)]];
+                    }
+                    start = end;
+                }
+
+                chunk.count = 0;
+                chunk.size = 0;
+                free.put(chunk);
+            }
+            return sum;
+        }
+    }
+
+    // Stored updates whose results follow rule changes. An inverted index from
+    // each pair of pages to the updates holding both means a rule change only
+    // revisits the updates it can affect.
+    static class LiveUpdates {
+        private final Rules rules;
+        private final Validator validator;
+        private final Sorter sorter;
+        private final List<Stored> updates = new ArrayList<>();
+        private final Map<Long, List<Integer>> byPair = new HashMap<>();
+        private long validSum = 0;
+        private long reorderedSum = 0;
+        private int unorderable = 0;
+
+        private static class Stored {
+            private final long[] pages;
+            private final int[] ids;
+            private long valid; // middle page when valid, else 0
+            private long reordered; // middle page after reordering when invalid, else 0
+            private boolean cyclic;
+
+            Stored(long[] pages, int[] ids) {
+                this.pages = pages;
+                this.ids = ids;
+            }
+        }
+
+        public LiveUpdates(Rules rules) {
+            this.rules = rules;
+            this.validator = new Validator(rules);
+            this.sorter = new Sorter(rules);
+        }
+
+        public long getValidSum() {
+            return this.validSum;
+        }
+
+        public long getReorderedSum() {
+            return this.reorderedSum;
+        }
+
+        // updates whose pages cannot be ordered under the current rules
+        public int getUnorderable() {
+            return this.unorderable;
+        }
+
+        private static long pairKey(int a, int b) {
+            return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+        }
+
+        public void addUpdate(int[] numbers, int len) {
+            if (len % 2 == 0) {
+                throw new IllegalStateException("Even sized list");
+            }
+
+            long[] pages = new long[len];
+            int[] ids = new int[len];
+            for (int i = 0; i < len; ++i) {
+                pages[i] = numbers[i];
+                ids[i] = this.rules.intern(pages[i]); // so later rules on these pages find it
+            }
+
+            Stored update = new Stored(pages, ids);
+            int at = this.updates.size();
+            this.updates.add(update);
+            for (int i = 0; i < len; ++i) {
+                for (int j = i; j < len; ++j) { // (a, a) too, for self-rules
+                    this.byPair.computeIfAbsent(pairKey(ids[i], ids[j]), k -> new ArrayList<>()).add(at);
+                }
+            }
+            evaluate(update);
+        }
+
+        public boolean addRule(long before, long after) {
+            if (!this.rules.add(before, after)) {
+                return false;
+            }
+            reevaluate(before, after);
+            return true;
+        }
+
+        public boolean removeRule(long before, long after) {
+            if (!this.rules.remove(before, after)) {
+                return false;
+            }
+            reevaluate(before, after);
+            return true;
+        }
+
+        private void reevaluate(long before, long after) {
+            List<Integer> affected = this.byPair.get(pairKey(this.rules.idOf(before), this.rules.idOf(after)));
+            if (affected == null) {
+                return;
+            }
+
+            for (int at : affected) {
+                Stored update = this.updates.get(at);
+                this.validSum -= update.valid;
+                this.reorderedSum -= update.reordered;
+                if (update.cyclic) {
+                    this.unorderable -= 1;
+                }
+                evaluate(update);
+            }
+        }
+
+        private void evaluate(Stored update) {
+            int len = update.ids.length;
+            update.valid = 0;
+            update.reordered = 0;
+            update.cyclic = false;
+
+            if (this.validator.isValid(update.ids, len)) {
+                update.valid = update.pages[len / 2];
+            } else {
+                try {
+                    update.reordered = update.pages[this.sorter.order(update.ids, len)[len / 2]];
+                } catch (IllegalStateException | IllegalArgumentException e) { // cyclic rules or repeated pages
+                    update.cyclic = true;
+                    this.unorderable += 1;
+                }
+            }
+
+            this.validSum += update.valid;
+            this.reorderedSum += update.reordered;
+        }
+    }
+
+    // Reads the rules and updates straight from the input bytes into reusable
+    // int buffers, without building a String per line or per number.
+    static class UpdateTokenizer implements Closeable {
+        private final InputStream in;
+        private final byte[] buf = new byte[1 << 16];
+        private int pos = 0;
+        private int limit = 0;
+        private long line = 1;
+        private int[] pages = new int[16];
+        private int[] rules = new int[256]; // before, after pairs
+        private int pending = -1; // length of an update read while looking for rules
+
+        public UpdateTokenizer(InputStream in) {
+            this.in = in;
+        }
+
+        // pages of the last update, valid until the next call
+        public int[] pages() {
+            return this.pages;
+        }
+
+        // pairs from the last readRules, valid until the next call
+        public int[] rulePairs() {
+            return this.rules;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+
+        private int peek() throws IOException {
+            if (this.pos == this.limit) {
+                this.pos = 0;
+                this.limit = Math.max(this.in.read(this.buf, 0, this.buf.length), 0);
+                if (this.limit == 0) {
+                    return -1;
+                }
+            }
+            return this.buf[this.pos];
+        }
+
+        private IllegalArgumentException malformed() {
+            return new IllegalArgumentException("Malformed input on line " + this.line);
+        }
+
+        private int number() throws IOException {
+            int c = peek();
+            if (c < '0' || c > '9')
+                throw malformed();
+
+            long value = 0;
+            while (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (value > Integer.MAX_VALUE)
+                    throw malformed();
+                this.pos += 1;
+                c = peek();
+            }
+            return (int) value;
+        }
+
+        private void endLine() throws IOException {
+            int c = peek();
+            if (c == '\r') {
+                this.pos += 1;
+                c = peek();
+            }
+            if (c == '\n') {
+                this.pos += 1;
+                this.line += 1;
+            } else if (c != -1) {
+                throw malformed();
+            }
+        }
+
+        private boolean atLineEnd() throws IOException {
+            int c = peek();
+            return c == '\n' || c == '\r';
+        }
+
+        private int updateFrom(int first) throws IOException {
+            this.pages[0] = first;
+            int len = 1;
+            while (peek() == ',') {
+                this.pos += 1;
+                if (len == this.pages.length) {
+                    this.pages = Arrays.copyOf(this.pages, len * 2);
+                }
+                this.pages[len++] = number();
+            }
+            endLine();
+            return len;
+        }
+
+        // reads "a|b" lines up to the blank line, returns the number of pairs
+        public int readRules() throws IOException {
+            int count = 0;
+            while (peek() != -1) {
+                if (atLineEnd()) {
+                    endLine();
+                    break;
+                }
+
+                int fst = number();
+                if (peek() != '|') {
+                    this.pending = updateFrom(fst); // no blank line before the updates
+                    break;
+                }
+                this.pos += 1;
+                int snd = number();
+                endLine();
+
+                if (2 * count + 2 > this.rules.length) {
+                    this.rules = Arrays.copyOf(this.rules, this.rules.length * 2);
+                }
+                this.rules[2 * count] = fst;
+                this.rules[2 * count + 1] = snd;
+                count += 1;
+            }
+            return count;
+        }
+
+        // reads the next "a,b,c" line into pages(), returns its length or -1 at the end
+        public int nextUpdate() throws IOException {
+            if (this.pending >= 0) {
+                int len = this.pending;
+                this.pending = -1;
+                return len;
+            }
+
+            while (atLineEnd()) {
+                endLine();
+            }
+            if (peek() == -1)
+                return -1;
 
-        public void mustComeAfter(Dependency other) {
-            this.dependencies.add(other.number);
+            int first = number();
+            if (peek() == '|')
+                throw malformed(); // rules have to come first
+            return updateFrom(first);
         }
     }
 }
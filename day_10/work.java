@@ -1,10 +1,19 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.IntBinaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -13,14 +22,6 @@ class Work {
     public static void main(String[] args) {
         String filename = args[0];
 
-        List<String> lines = null;
-        try (Stream<String> linesStream = Files.lines(Path.of(filename))) {
-            lines = linesStream.collect(Collectors.toList());
-        } catch (IOException e) {
-            System.err.println("Could not open file");
-            System.exit(1);
-        }
-
         int part = 1;
         if (args.length > 1) {
             try {
@@ -29,20 +30,233 @@ class Work {
             }
         }
 
-        switch (part) {
-            case 1:
-                partOne(lines);
+        String mode = "lists";
+        if (args.length > 2) {
+            mode = args[2];
+        }
+
+        if (mode.equals("tiled")) {
+            int tile = TiledTerrain.DEFAULT_TILE;
+            if (args.length > 3) {
+                try {
+                    tile = Integer.parseInt(args[3]);
+                } catch (NumberFormatException ignore) {
+                }
+            }
+            tiled(filename, part, tile, new Report(false));
+            return;
+        }
+
+        Report report = new Report(args.length > 3 && args[3].equals("grid"));
+        List<String> lines = null;
+        try (Stream<String> linesStream = Files.lines(Path.of(filename))) {
+            lines = linesStream.collect(Collectors.toList());
+        } catch (IOException e) {
+            System.err.println("Could not open file");
+            System.exit(1);
+        }
+
+        switch (mode) {
+            case "lists":
+                switch (part) {
+                    case 1:
+                        partOne(lines, report);
+                        break;
+                    case 2:
+                        partTwo(lines, report);
+                        break;
+                    default:
+                        System.err.println("Unknown part");
+                        System.exit(1);
+                }
                 break;
-            case 2:
-                partTwo(lines);
+            case "flat":
+            case "bitset":
+            case "parallel":
+                switch (part) {
+                    case 1:
+                        partOneFlat(Terrain.parse(lines), mode, report);
+                        break;
+                    case 2:
+                        partTwoFlat(Terrain.parse(lines), mode.equals("parallel"), report);
+                        break;
+                    default:
+                        System.err.println("Unknown part");
+                        System.exit(1);
+                }
+                break;
+            case "edit":
+                if (part != 1 && part != 2) {
+                    System.err.println("Unknown part");
+                    System.exit(1);
+                }
+                applyEdits(Terrain.parse(lines), part, args.length > 3 ? args[3] : null);
                 break;
             default:
-                System.err.println("Unknown part");
+                System.err.println("Unknown mode");
                 System.exit(1);
         }
     }
 
-    private static void partOne(List<String> lines) {
+    private static void partOneFlat(Terrain terrain, String mode, Report report) {
+        report.startSolve();
+        int[] scores = terrain.summitScores(mode.equals("parallel"));
+        report.print(terrain.rows, terrain.cols, terrain.heights, scores);
+    }
+
+    private static void partTwoFlat(Terrain terrain, boolean parallel, Report report) {
+        report.startSolve();
+        int[] ratings = terrain.ratings(parallel);
+        report.print(terrain.rows, terrain.cols, terrain.heights, ratings);
+    }
+
+    private static void applyEdits(Terrain terrain, int part, String editsFilename) {
+        if (editsFilename == null) {
+            System.err.println("Expected edits file");
+            System.exit(1);
+        }
+
+        Report report = new Report(false);
+        report.startSolve();
+        MutableTerrain t = new MutableTerrain(terrain);
+        try (Stream<String> editsStream = Files.lines(Path.of(editsFilename))) {
+            editsStream.filter(l -> !l.isEmpty()).forEach(l -> {
+                String[] parts = l.split(",");
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("Bad edit: " + l);
+                }
+                t.setHeight(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            });
+        } catch (IOException e) {
+            System.err.println("Could not open file");
+            System.exit(1);
+        }
+
+        report.printTotal(part == 1 ? t.getScoreTotal() : t.getRatingTotal());
+    }
+
+    private static void tiled(String filename, int part, int tile, Report report) {
+        if (part != 1 && part != 2) {
+            System.err.println("Unknown part");
+            System.exit(1);
+        }
+
+        try (TiledTerrain terrain = TiledTerrain.open(Path.of(filename), tile)) {
+            report.startSolve(); // tiles are read as they are solved
+            report.printTotal(terrain.total(part));
+        } catch (IOException e) {
+            System.err.println("Could not open file");
+            System.exit(1);
+        }
+    }
+
+    // Prints the sum over the trailheads, and in grid mode the whole map
+    // first as "(height)result" cells. Cells are rendered by hand into one
+    // char buffer per row and go out through a single buffered writer.
+    // Solve and print times are reported on stderr, the solve from
+    // startSolve, once the input is parsed, to stopSolve or the first print.
+    static class Report {
+        private final boolean grid;
+        private long start = 0;
+        private long solved = 0;
+
+        public Report(boolean grid) {
+            this.grid = grid;
+        }
+
+        public void startSolve() {
+            this.start = System.nanoTime();
+        }
+
+        public void stopSolve() {
+            if (this.solved == 0) {
+                this.solved = System.nanoTime();
+            }
+        }
+
+        public void print(int rows, int cols, byte[] heights, int[] results) {
+            stopSolve();
+            long printing = System.nanoTime();
+            Counter counter = new Counter();
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+            try {
+                char[] line = new char[this.grid ? cols * 15 : 0]; // "(9)" + up to 11 digits + ' '
+                for (int r = 0; r < rows; ++r) {
+                    int len = 0;
+                    for (int c = 0; c < cols; ++c) {
+                        int i = r * cols + c;
+                        if (heights[i] == 0) {
+                            counter.inc(results[i]);
+                        }
+                        if (this.grid) {
+                            len = renderCell(line, len, heights[i], results[i]);
+                        }
+                    }
+                    if (this.grid) {
+                        out.write(line, 0, len);
+                        out.newLine();
+                    }
+                }
+                out.write("Total = " + counter.getLong());
+                out.newLine();
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Could not write output");
+                System.exit(1);
+            }
+            printTimes(printing);
+        }
+
+        public void printTotal(long total) {
+            stopSolve();
+            long printing = System.nanoTime();
+            System.out.println("Total = " + total);
+            printTimes(printing);
+        }
+
+        private void printTimes(long printing) {
+            long printed = System.nanoTime();
+            System.err.println("Solve: " + (this.solved - this.start) / 1_000_000 + " ms");
+            System.err.println("Print: " + (printed - printing) / 1_000_000 + " ms");
+        }
+
+        // "(h)nnn " with the result zero padded to at least three digits
+        private static int renderCell(char[] line, int len, byte height, int result) {
+            line[len++] = '(';
+            line[len++] = (char) ('0' + height);
+            line[len++] = ')';
+
+            int digits = 1;
+            for (int v = result / 10; v > 0; v /= 10) {
+                ++digits;
+            }
+            int width = Math.max(3, digits);
+            for (int j = len + width - 1, v = result; j >= len; --j, v /= 10) {
+                line[j] = (char) ('0' + v % 10);
+            }
+            len += width;
+            line[len++] = ' ';
+            return len;
+        }
+    }
+
+    // the boxed grid and results of the list based solutions, flattened for Report
+    private static void report(Report report, List<List<Integer>> nums, IntBinaryOperator result) {
+        report.stopSolve();
+        int rows = nums.size();
+        int cols = nums.get(0).size();
+        byte[] heights = new byte[rows * cols];
+        int[] results = new int[rows * cols];
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c) {
+                heights[r * cols + c] = (byte) (int) nums.get(r).get(c);
+                results[r * cols + c] = result.applyAsInt(r, c);
+            }
+        }
+        report.print(rows, cols, heights, results);
+    }
+
+    private static void partOne(List<String> lines, Report report) {
         List<List<Integer>> nums = lines.stream()
                 .map(l -> Arrays.stream(l.split("")).map(Integer::parseInt).collect(Collectors.toList()))
                 .collect(Collectors.toList());
@@ -54,6 +268,7 @@ class Work {
                 throw new IllegalStateException();
             }
         });
+        report.startSolve();
 
         List<Pair<Integer, Integer>> coords = getCoords(rows, cols);
         coords.sort((p1, p2) -> {
@@ -105,31 +320,21 @@ class Work {
             }
         }
 
-        Counter counter = new Counter();
-        for (int r = 0; r < rows; ++r) {
-            for (int c = 0; c < cols; ++c) {
-                System.out.printf("(%d)%03d ", nums.get(r).get(c), results.get(r).get(c).size());
-                if (nums.get(r).get(c) == 0) {
-                    counter.inc(results.get(r).get(c).size());
-                }
-            }
-            System.out.println();
-        }
-        System.out.println("Total = " + counter.getInt());
+        report(report, nums, (r, c) -> results.get(r).get(c).size());
     }
 
     static class Counter {
-        private int c = 0;
+        private long c = 0;
 
         public void inc() {
             ++c;
         }
 
-        public void inc(int n) {
+        public void inc(long n) {
             c += n;
         }
 
-        public int getInt() {
+        public long getLong() {
             return c;
         }
     }
@@ -166,7 +371,7 @@ class Work {
         }
     }
 
-    private static void partTwo(List<String> lines) {
+    private static void partTwo(List<String> lines, Report report) {
         List<List<Integer>> nums = lines.stream()
                 .map(l -> Arrays.stream(l.split("")).map(Integer::parseInt).collect(Collectors.toList()))
                 .collect(Collectors.toList());
@@ -178,6 +383,7 @@ class Work {
                 throw new IllegalStateException();
             }
         });
+        report.startSolve();
 
         List<Pair<Integer, Integer>> coords = getCoords(rows, cols);
         coords.sort((p1, p2) -> {
@@ -233,16 +439,617 @@ class Work {
             results.get(r).set(c, thisResult);
         }
 
-        Counter counter = new Counter();
-        for (int r = 0; r < rows; ++r) {
-            for (int c = 0; c < cols; ++c) {
-                System.out.printf("(%d)%03d ", nums.get(r).get(c), results.get(r).get(c));
-                if (nums.get(r).get(c) == 0) {
-                    counter.inc(results.get(r).get(c));
+        report(report, nums, (r, c) -> results.get(r).get(c));
+    }
+
+    // Heights in one row-major byte[], with the cell indices bucketed by
+    // height in a single counting pass so the DP can run from 9 down to 0
+    // without sorting.
+    static class Terrain {
+        static final int MAX_HEIGHT = 9;
+
+        public final int rows;
+        public final int cols;
+        public final byte[] heights;
+        private final int[] order; // cell indices grouped by height
+        private final int[] layerStart; // order[layerStart[h] .. layerStart[h + 1]) have height h
+
+        public Terrain(int rows, int cols, byte[] heights) {
+            if (heights.length != rows * cols) {
+                throw new IllegalArgumentException("Heights do not match the size");
+            }
+
+            this.rows = rows;
+            this.cols = cols;
+            this.heights = heights;
+            this.layerStart = new int[MAX_HEIGHT + 2];
+            for (byte h : heights) {
+                this.layerStart[h + 1] += 1;
+            }
+            for (int h = 0; h <= MAX_HEIGHT; ++h) {
+                this.layerStart[h + 1] += this.layerStart[h];
+            }
+
+            int[] next = Arrays.copyOf(this.layerStart, MAX_HEIGHT + 1);
+            this.order = new int[heights.length];
+            for (int i = 0; i < heights.length; ++i) {
+                this.order[next[heights[i]]++] = i;
+            }
+        }
+
+        public static Terrain parse(List<String> lines) {
+            int rows = lines.size();
+            int cols = rows == 0 ? 0 : lines.get(0).length();
+            byte[] heights = new byte[rows * cols];
+            for (int r = 0; r < rows; ++r) {
+                String line = lines.get(r);
+                if (line.length() != cols) {
+                    throw new IllegalStateException();
+                }
+                for (int c = 0; c < cols; ++c) {
+                    char ch = line.charAt(c);
+                    if (ch < '0' || ch > '9') {
+                        throw new IllegalArgumentException("Bad height: " + ch);
+                    }
+                    heights[r * cols + c] = (byte) (ch - '0');
                 }
             }
-            System.out.println();
+            return new Terrain(rows, cols, heights);
+        }
+
+        // the neighbors of cell i one step higher, written to out, returns how many
+        int higherNeighbors(int i, int[] out) {
+            int up = this.heights[i] + 1;
+            int r = i / this.cols;
+            int c = i - r * this.cols;
+            int n = 0;
+            if (r > 0 && this.heights[i - this.cols] == up) {
+                out[n++] = i - this.cols;
+            }
+            if (c + 1 < this.cols && this.heights[i + 1] == up) {
+                out[n++] = i + 1;
+            }
+            if (r + 1 < this.rows && this.heights[i + this.cols] == up) {
+                out[n++] = i + this.cols;
+            }
+            if (c > 0 && this.heights[i - 1] == up) {
+                out[n++] = i - 1;
+            }
+            return n;
+        }
+
+        // a run of order[from .. to) inside a single height layer
+        interface LayerChunk {
+            void run(int from, int to);
+        }
+
+        private static final int LAYER_CHUNK = 1 << 14;
+
+        // Cells of layer h only read cells of layer h + 1, so a whole layer
+        // can be split into independent chunks. The parallel stream's terminal
+        // operation is the barrier before the next layer starts.
+        private void runLayer(int h, boolean parallel, LayerChunk body) {
+            int from = this.layerStart[h];
+            int to = this.layerStart[h + 1];
+            if (!parallel || to - from <= LAYER_CHUNK) {
+                body.run(from, to);
+                return;
+            }
+
+            int chunks = (to - from + LAYER_CHUNK - 1) / LAYER_CHUNK;
+            IntStream.range(0, chunks).parallel()
+                    .forEach(c -> body.run(from + c * LAYER_CHUNK, Math.min(to, from + (c + 1) * LAYER_CHUNK)));
+        }
+
+        // distinct trails to a summit from every cell
+        public int[] ratings() {
+            return ratings(false);
+        }
+
+        public int[] ratings(boolean parallel) {
+            int[] res = new int[this.heights.length];
+            for (int h = MAX_HEIGHT; h >= 0; --h) {
+                boolean top = h == MAX_HEIGHT;
+                runLayer(h, parallel, (from, to) -> {
+                    int[] near = new int[4];
+                    for (int k = from; k < to; ++k) {
+                        int i = this.order[k];
+                        if (top) {
+                            res[i] = 1;
+                            continue;
+                        }
+
+                        int n = higherNeighbors(i, near);
+                        int sum = 0;
+                        for (int j = 0; j < n; ++j) {
+                            sum += res[near[j]];
+                        }
+                        res[i] = sum;
+                    }
+                });
+            }
+            return res;
+        }
+
+        // distinct summits reachable from every cell. Summits are numbered
+        // densely and each cell gets a long[] bitset over them, or a sorted
+        // id array when there are too many summits for dense sets to pay off.
+        // Only two layers of sets are ever alive: once layer h is done, the
+        // sets of layer h + 1 are recycled (serial) or dropped (parallel).
+        public int[] summitScores(boolean parallel) {
+            int summits = this.layerStart[MAX_HEIGHT + 1] - this.layerStart[MAX_HEIGHT];
+            int words = (summits + 63) >>> 6;
+            return words <= DENSE_SUMMIT_WORDS ? denseScores(words, parallel) : sparseScores(parallel);
+        }
+
+        private static final int DENSE_SUMMIT_WORDS = 8;
+
+        private int[] denseScores(int words, boolean parallel) {
+            int[] res = new int[this.heights.length];
+            long[][] sets = new long[this.heights.length][];
+            ArrayDeque<long[]> pool = parallel ? null : new ArrayDeque<>();
+            int base = this.layerStart[MAX_HEIGHT];
+
+            for (int h = MAX_HEIGHT; h >= 0; --h) {
+                boolean top = h == MAX_HEIGHT;
+                runLayer(h, parallel, (from, to) -> {
+                    int[] near = new int[4];
+                    for (int k = from; k < to; ++k) {
+                        int i = this.order[k];
+                        long[] set = pool == null || pool.isEmpty() ? new long[words] : pool.pop();
+                        if (top) {
+                            set[(k - base) >>> 6] |= 1L << (k - base);
+                        } else {
+                            int n = higherNeighbors(i, near);
+                            for (int j = 0; j < n; ++j) {
+                                long[] other = sets[near[j]];
+                                for (int w = 0; w < words; ++w) {
+                                    set[w] |= other[w];
+                                }
+                            }
+                        }
+
+                        int count = 0;
+                        for (long bits : set) {
+                            count += Long.bitCount(bits);
+                        }
+                        sets[i] = set;
+                        res[i] = count;
+                    }
+                });
+
+                if (!top) {
+                    for (int k = this.layerStart[h + 1]; k < this.layerStart[h + 2]; ++k) {
+                        long[] set = sets[this.order[k]];
+                        if (pool != null) {
+                            Arrays.fill(set, 0);
+                            pool.push(set);
+                        }
+                        sets[this.order[k]] = null;
+                    }
+                }
+            }
+            return res;
+        }
+
+        private int[] sparseScores(boolean parallel) {
+            int[] res = new int[this.heights.length];
+            int[][] sets = new int[this.heights.length][];
+            int base = this.layerStart[MAX_HEIGHT];
+
+            for (int h = MAX_HEIGHT; h >= 0; --h) {
+                boolean top = h == MAX_HEIGHT;
+                runLayer(h, parallel, (from, to) -> {
+                    int[] near = new int[4];
+                    int[] merged = new int[16];
+                    for (int k = from; k < to; ++k) {
+                        int i = this.order[k];
+                        if (top) {
+                            sets[i] = new int[] { k - base };
+                            res[i] = 1;
+                            continue;
+                        }
+
+                        int n = higherNeighbors(i, near);
+                        int total = 0;
+                        for (int j = 0; j < n; ++j) {
+                            total += sets[near[j]].length;
+                        }
+                        if (merged.length < total) {
+                            merged = new int[Math.max(total, merged.length * 2)];
+                        }
+
+                        int len = 0;
+                        for (int j = 0; j < n; ++j) {
+                            int[] other = sets[near[j]];
+                            System.arraycopy(other, 0, merged, len, other.length);
+                            len += other.length;
+                        }
+                        Arrays.sort(merged, 0, len);
+
+                        int unique = 0;
+                        for (int m = 0; m < len; ++m) {
+                            if (unique == 0 || merged[unique - 1] != merged[m]) {
+                                merged[unique++] = merged[m];
+                            }
+                        }
+                        sets[i] = Arrays.copyOf(merged, unique);
+                        res[i] = unique;
+                    }
+                });
+
+                if (!top) {
+                    for (int k = this.layerStart[h + 1]; k < this.layerStart[h + 2]; ++k) {
+                        sets[this.order[k]] = null;
+                    }
+                }
+            }
+            return res;
+        }
+    }
+
+    // A terrain file too big to load, solved tile by tile straight from the
+    // file. A trail is only MAX_HEIGHT steps long, so every trail starting
+    // inside a tile stays within a MAX_HEIGHT wide halo around it: loading
+    // each tile with its halo is the whole boundary exchange, and the tiles
+    // can then be solved independently.
+    static class TiledTerrain implements Closeable {
+        static final int DEFAULT_TILE = 1024;
+        static final int HALO = Terrain.MAX_HEIGHT;
+
+        public final int rows;
+        public final int cols;
+        private final int tile;
+        private final long size;
+        private final int stride; // bytes per line, line break included
+        private final FileChannel channel;
+
+        private TiledTerrain(FileChannel channel, int rows, int cols, int stride, int tile) throws IOException {
+            this.channel = channel;
+            this.rows = rows;
+            this.cols = cols;
+            this.stride = stride;
+            this.tile = tile;
+            this.size = channel.size();
+        }
+
+        public static TiledTerrain open(Path path, int tile) throws IOException {
+            if (tile <= 0) {
+                throw new IllegalArgumentException("Bad tile size: " + tile);
+            }
+
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                ByteBuffer head = ByteBuffer.allocate(1 << 16);
+                long pos = 0;
+                long lineEnd = -1;
+                while (lineEnd < 0 && pos < size) {
+                    head.clear();
+                    int n = channel.read(head, pos);
+                    for (int j = 0; j < n; ++j) {
+                        if (head.get(j) == '\n') {
+                            lineEnd = pos + j;
+                            break;
+                        }
+                    }
+                    pos += n;
+                }
+                if (lineEnd < 0) {
+                    lineEnd = size;
+                }
+
+                long cols = lineEnd;
+                if (cols > 0 && readByte(channel, cols - 1) == '\r') {
+                    --cols;
+                }
+                long stride = lineEnd + 1;
+                long rows = (size + stride - 1) / stride;
+                if (cols > Integer.MAX_VALUE || rows > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Terrain too large");
+                }
+                if ((rows - 1) * stride + cols > size) {
+                    throw new IllegalStateException();
+                }
+                return new TiledTerrain(channel, (int) rows, (int) cols, (int) stride, tile);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private static byte readByte(FileChannel channel, long pos) throws IOException {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, pos);
+            return one.get(0);
+        }
+
+        // sum of the scores (part 1) or ratings (part 2) of all trailheads
+        public long total(int part) throws IOException {
+            int tileRows = (this.rows + this.tile - 1) / this.tile;
+            int tileCols = (this.cols + this.tile - 1) / this.tile;
+            try {
+                return IntStream.range(0, tileRows * tileCols).parallel()
+                        .mapToLong(t -> {
+                            try {
+                                return solveTile((t / tileCols) * this.tile, (t % tileCols) * this.tile, part);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        })
+                        .sum();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private long solveTile(int r0, int c0, int part) throws IOException {
+            int top = Math.max(0, r0 - HALO);
+            int bottom = Math.min(this.rows, r0 + this.tile + HALO);
+            int left = Math.max(0, c0 - HALO);
+            int right = Math.min(this.cols, c0 + this.tile + HALO);
+            int width = right - left;
+
+            byte[] heights = new byte[(bottom - top) * width];
+            int lineBreak = this.stride - this.cols;
+            ByteBuffer buf = ByteBuffer.allocate(width + lineBreak);
+            for (int r = top; r < bottom; ++r) {
+                long pos = (long) r * this.stride + left;
+                // the last column also checks the line break, which keeps
+                // the file rectangular
+                int want = width;
+                if (right == this.cols) {
+                    want += (int) Math.min(lineBreak, this.size - pos - width);
+                }
+
+                buf.clear().limit(want);
+                while (buf.hasRemaining()) {
+                    if (this.channel.read(buf, pos + buf.position()) < 0) {
+                        throw new IllegalStateException();
+                    }
+                }
+
+                int row = (r - top) * width;
+                for (int c = 0; c < width; ++c) {
+                    byte ch = buf.get(c);
+                    if (ch < '0' || ch > '9') {
+                        throw new IllegalArgumentException("Bad height: " + (char) ch);
+                    }
+                    heights[row + c] = (byte) (ch - '0');
+                }
+                for (int c = width; c < want; ++c) {
+                    if (buf.get(c) != '\r' && buf.get(c) != '\n') {
+                        throw new IllegalStateException();
+                    }
+                }
+            }
+
+            Terrain terrain = new Terrain(bottom - top, width, heights);
+            int[] res = part == 1 ? terrain.summitScores(false) : terrain.ratings();
+
+            // only the trailheads of the tile itself, the halo belongs to its neighbours
+            long sum = 0;
+            for (int r = r0; r < Math.min(this.rows, r0 + this.tile); ++r) {
+                for (int c = c0; c < Math.min(this.cols, c0 + this.tile); ++c) {
+                    int i = (r - top) * width + (c - left);
+                    if (heights[i] == 0) {
+                        sum += res[i];
+                    }
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    // Terrain edited in place. Scores and ratings are cached per cell, and
+    // an edit only touches the cells whose trails can pass through the
+    // edited one: its downhill cone under the old height and under the new
+    // one. A trail is MAX_HEIGHT steps long, so a cone never reaches further
+    // than that, whatever the size of the map. The trailhead totals are
+    // kept up to date by swapping the old values of the cone for the new.
+    static class MutableTerrain {
+        public final int rows;
+        public final int cols;
+        private final byte[] heights;
+        private final int[] scores; // -1 until computed
+        private final int[] ratings; // -1 until computed
+        private long scoreTotal;
+        private long ratingTotal;
+
+        private final int[] seen; // stamps for the cone and summit searches
+        private int epoch = 0;
+        private int[] queue = new int[256];
+        private final int[] near = new int[4];
+
+        public MutableTerrain(Terrain terrain) {
+            this.rows = terrain.rows;
+            this.cols = terrain.cols;
+            this.heights = terrain.heights.clone();
+            this.scores = terrain.summitScores(false);
+            this.ratings = terrain.ratings();
+            this.seen = new int[this.heights.length];
+            for (int i = 0; i < this.heights.length; ++i) {
+                if (this.heights[i] == 0) {
+                    this.scoreTotal += this.scores[i];
+                    this.ratingTotal += this.ratings[i];
+                }
+            }
+        }
+
+        public int getHeight(int r, int c) {
+            return this.heights[index(r, c)];
+        }
+
+        public long getScoreTotal() {
+            return this.scoreTotal;
+        }
+
+        public long getRatingTotal() {
+            return this.ratingTotal;
+        }
+
+        public int score(int r, int c) {
+            return score(index(r, c));
+        }
+
+        public int rating(int r, int c) {
+            return rating(index(r, c));
+        }
+
+        public void setHeight(int r, int c, int h) {
+            int x = index(r, c);
+            if (h < 0 || h > Terrain.MAX_HEIGHT) {
+                throw new IllegalArgumentException("Bad height: " + h);
+            }
+            int old = this.heights[x];
+            if (old == h) {
+                return;
+            }
+
+            // both cones, stamped with the same epoch so they are merged
+            ++this.epoch;
+            int len = cone(x, old, 0);
+            len = cone(x, h, len);
+            int[] cone = Arrays.copyOf(this.queue, len);
+
+            for (int i : cone) {
+                if (this.heights[i] == 0) {
+                    this.scoreTotal -= score(i);
+                    this.ratingTotal -= rating(i);
+                }
+            }
+            for (int i : cone) {
+                this.scores[i] = -1;
+                this.ratings[i] = -1;
+            }
+
+            this.heights[x] = (byte) h;
+            for (int i : cone) {
+                if (this.heights[i] == 0) {
+                    this.scoreTotal += score(i);
+                    this.ratingTotal += rating(i);
+                }
+            }
+        }
+
+        private int index(int r, int c) {
+            if (r < 0 || r >= this.rows || c < 0 || c >= this.cols) {
+                throw new IllegalArgumentException("Bad position: " + r + "," + c);
+            }
+            return r * this.cols + c;
+        }
+
+        // appends to queue[len ..] the cells reachable downhill from x, as
+        // if x had height hx, skipping cells already stamped this epoch
+        private int cone(int x, int hx, int len) {
+            if (this.seen[x] != this.epoch) {
+                this.seen[x] = this.epoch;
+                len = push(x, len);
+            }
+            // x is expanded even when the other cone already holds it
+            int head = len;
+            len = expand(x, hx - 1, len);
+            while (head < len) {
+                int i = this.queue[head++];
+                len = expand(i, this.heights[i] - 1, len);
+            }
+            return len;
+        }
+
+        private int expand(int i, int want, int len) {
+            int n = neighbors(i, want, this.near);
+            for (int j = 0; j < n; ++j) {
+                int k = this.near[j];
+                if (this.seen[k] != this.epoch) {
+                    this.seen[k] = this.epoch;
+                    len = push(k, len);
+                }
+            }
+            return len;
+        }
+
+        private int push(int i, int len) {
+            if (len == this.queue.length) {
+                this.queue = Arrays.copyOf(this.queue, len * 2);
+            }
+            this.queue[len] = i;
+            return len + 1;
+        }
+
+        private int rating(int i) {
+            if (this.ratings[i] < 0) {
+                int h = this.heights[i];
+                if (h == Terrain.MAX_HEIGHT) {
+                    this.ratings[i] = 1;
+                } else {
+                    int[] up = new int[4];
+                    int n = neighbors(i, h + 1, up);
+                    int sum = 0;
+                    for (int j = 0; j < n; ++j) {
+                        sum += rating(up[j]);
+                    }
+                    this.ratings[i] = sum;
+                }
+            }
+            return this.ratings[i];
+        }
+
+        // summits reachable from i, found with a search over its uphill cone
+        private int score(int i) {
+            if (this.scores[i] < 0) {
+                int[] stack = new int[64];
+                int[] up = new int[4];
+                int mark = ++this.epoch;
+                int len = 0;
+                int summits = 0;
+                this.seen[i] = mark;
+                stack[len++] = i;
+                while (len > 0) {
+                    int k = stack[--len];
+                    int h = this.heights[k];
+                    if (h == Terrain.MAX_HEIGHT) {
+                        ++summits;
+                        continue;
+                    }
+                    int n = neighbors(k, h + 1, up);
+                    for (int j = 0; j < n; ++j) {
+                        if (this.seen[up[j]] != mark) {
+                            this.seen[up[j]] = mark;
+                            if (len == stack.length) {
+                                stack = Arrays.copyOf(stack, len * 2);
+                            }
+                            stack[len++] = up[j];
+                        }
+                    }
+                }
+                this.scores[i] = summits;
+            }
+            return this.scores[i];
+        }
+
+        // the neighbors of cell i with height want, written to out, returns how many
+        private int neighbors(int i, int want, int[] out) {
+            int r = i / this.cols;
+            int c = i - r * this.cols;
+            int n = 0;
+            if (r > 0 && this.heights[i - this.cols] == want) {
+                out[n++] = i - this.cols;
+            }
+            if (c + 1 < this.cols && this.heights[i + 1] == want) {
+                out[n++] = i + 1;
+            }
+            if (r + 1 < this.rows && this.heights[i + this.cols] == want) {
+                out[n++] = i + this.cols;
+            }
+            if (c > 0 && this.heights[i - 1] == want) {
+                out[n++] = i - 1;
+            }
+            return n;
         }
-        System.out.println("Total = " + counter.getInt());
     }
 }
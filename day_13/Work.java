@@ -1,8 +1,12 @@
+import java.io.Closeable;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 class Work {
     public static void main(String[] args) {
@@ -20,16 +24,34 @@ class Work {
             }
         }
 
-        try {
-            Path filePath = Path.of(filename);
-            String contents = Files.readString(filePath);
+        String mode = "batch";
+        if (args.length > 2) {
+            mode = args[2];
+        }
+
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        if (args.length > 3) {
+            try {
+                parallelism = Integer.parseInt(args[3]);
+            } catch (NumberFormatException ignore) {
+            }
+        }
+
+        MachineCost cost = switch (mode) {
+            case "batch" -> new BatchSolver(parallelism);
+            case "cramer" -> perMachine(new CramerSolver());
+            case "frac" -> perMachine(new FracSolver());
+            case "rational" -> perMachine(new RationalSolver());
+            default -> throw new IllegalStateException("Bad mode");
+        };
 
+        try (MachineReader in = MachineReader.open(Path.of(filename))) {
             switch (part) {
                 case 1:
-                    partOne(contents);
+                    partOne(in, cost);
                     break;
                 case 2:
-                    partTwo(contents);
+                    partTwo(in, cost);
                     break;
                 default:
                     throw new IllegalStateException("Bad part");
@@ -40,11 +62,20 @@ class Work {
         }
     }
 
+    // binary gcd of two positive values
     private static long uncheckedGcd(long a, long b) {
-        if (a % b == 0) {
-            return b;
+        int shift = Long.numberOfTrailingZeros(a | b);
+        a >>= Long.numberOfTrailingZeros(a);
+        while (b != 0) {
+            b >>= Long.numberOfTrailingZeros(b);
+            if (a > b) {
+                long t = a;
+                a = b;
+                b = t;
+            }
+            b -= a;
         }
-        return uncheckedGcd(b, a % b);
+        return a << shift;
     }
 
     public static long gcd(long a, long b) {
@@ -214,75 +245,626 @@ class Work {
         }
     }
 
-    public static void partOne(String contents) {
-        long offset = 0;
-        long minCost = getMinCost(contents, offset);
+    // A rational as a pair of longs in lowest terms with a positive
+    // denominator, updated in place so that arithmetic does not allocate.
+    // Products are checked with Math.multiplyHigh and only an overflow
+    // moves the value to BigInteger; it comes back to longs when it fits.
+    static final class Rational {
+        private long num = 0;
+        private long den = 1;
+        private BigInteger bigNum = null; // both set while the value does not fit
+        private BigInteger bigDen = null;
 
-        System.out.println(minCost);
-    }
+        public Rational set(long value) {
+            return set(value, 1);
+        }
 
-    public static void partTwo(String contents) {
-        long offset = Long.parseLong("10000000000000");
-        long minCost = getMinCost(contents, offset);
+        public Rational set(long num, long den) {
+            if (den == 0) {
+                throw new ArithmeticException("Zero denominator");
+            }
+            if (num == Long.MIN_VALUE || den == Long.MIN_VALUE) {
+                return setBig(BigInteger.valueOf(num), BigInteger.valueOf(den));
+            }
 
-        System.out.println(minCost);
-    }
+            if (den < 0) {
+                num = -num;
+                den = -den;
+            }
+            long g = gcdOrOther(Math.abs(num), den);
+            this.num = num / g;
+            this.den = den / g;
+            this.bigNum = null;
+            this.bigDen = null;
+            return this;
+        }
+
+        public Rational set(Rational other) {
+            this.num = other.num;
+            this.den = other.den;
+            this.bigNum = other.bigNum;
+            this.bigDen = other.bigDen;
+            return this;
+        }
+
+        public Rational mul(long value) {
+            if (this.bigNum == null && value != Long.MIN_VALUE) {
+                long g = gcdOrOther(Math.abs(value), this.den);
+                long n = value / g;
+                if (fits(this.num, n)) {
+                    this.num *= n;
+                    this.den /= g;
+                    return this;
+                }
+            }
+            return setBig(big().multiply(BigInteger.valueOf(value)), bigDenominator());
+        }
+
+        public Rational mul(Rational other) {
+            if (this.bigNum == null && other.bigNum == null) {
+                // cross reduce first, the result is then in lowest terms
+                long g1 = gcdOrOther(Math.abs(this.num), other.den);
+                long g2 = gcdOrOther(Math.abs(other.num), this.den);
+                long n1 = this.num / g1;
+                long n2 = other.num / g2;
+                long d1 = this.den / g2;
+                long d2 = other.den / g1;
+                if (fits(n1, n2) && fits(d1, d2)) {
+                    this.num = n1 * n2;
+                    this.den = d1 * d2;
+                    return this;
+                }
+            }
+            return setBig(big().multiply(other.big()), bigDenominator().multiply(other.bigDenominator()));
+        }
+
+        public Rational add(Rational other) {
+            if (this.bigNum == null && other.bigNum == null) {
+                long g = gcdOrOther(this.den, other.den);
+                long m1 = other.den / g;
+                long m2 = this.den / g;
+                if (fits(this.num, m1) && fits(other.num, m2) && fits(this.den, m1)) {
+                    long a = this.num * m1;
+                    long b = other.num * m2;
+                    long sum = a + b;
+                    // the sum overflowed when it has the sign of neither term
+                    if (((a ^ sum) & (b ^ sum)) >= 0 && sum != Long.MIN_VALUE) {
+                        return set(sum, this.den * m1);
+                    }
+                }
+            }
+            BigInteger d = bigDenominator();
+            BigInteger od = other.bigDenominator();
+            return setBig(big().multiply(od).add(other.big().multiply(d)), d.multiply(od));
+        }
+
+        public Rational negate() {
+            if (this.bigNum != null || this.num == Long.MIN_VALUE) {
+                return setBig(big().negate(), bigDenominator());
+            }
+            this.num = -this.num;
+            return this;
+        }
+
+        public Rational invert() {
+            if (isZero()) {
+                throw new ArithmeticException("Inverse of zero");
+            }
+            if (this.bigNum != null) {
+                return setBig(this.bigDen, this.bigNum);
+            }
+            return set(this.den, this.num);
+        }
+
+        public boolean isZero() {
+            return this.bigNum == null ? this.num == 0 : this.bigNum.signum() == 0;
+        }
+
+        public boolean isNegative() {
+            return this.bigNum == null ? this.num < 0 : this.bigNum.signum() < 0;
+        }
+
+        public boolean isIntegral() {
+            return this.bigNum == null ? this.den == 1 : this.bigDen.equals(BigInteger.ONE);
+        }
+
+        // the value as a long, throws ArithmeticException if it is not one
+        public long asLong() {
+            if (!isIntegral()) {
+                throw new IllegalStateException("Long of non-integral rational");
+            }
+            return this.bigNum == null ? this.num : this.bigNum.longValueExact();
+        }
+
+        private BigInteger big() {
+            return this.bigNum == null ? BigInteger.valueOf(this.num) : this.bigNum;
+        }
 
-    private static long getMinCost(String contents, long offset) {
-        String[] parts = contents.split("\n\n");
-        Pattern pattern = Pattern.compile("Button A: X\\+(\\d+), Y\\+(\\d+)\n" +
-                "Button B: X\\+(\\d+), Y\\+(\\d+)\n" +
-                "Prize: X=(\\d+), Y=(\\d+)");
+        private BigInteger bigDenominator() {
+            return this.bigNum == null ? BigInteger.valueOf(this.den) : this.bigDen;
+        }
 
-        final long A_COST = 3;
-        final long B_COST = 1;
+        private Rational setBig(BigInteger num, BigInteger den) {
+            if (den.signum() == 0) {
+                throw new ArithmeticException("Zero denominator");
+            }
+            if (den.signum() < 0) {
+                num = num.negate();
+                den = den.negate();
+            }
+            BigInteger g = num.gcd(den);
+            num = num.divide(g);
+            den = den.divide(g);
+            // Long.MIN_VALUE stays big too, it has no long negation
+            if (num.bitLength() < Long.SIZE && den.bitLength() < Long.SIZE && num.longValue() != Long.MIN_VALUE) {
+                this.num = num.longValue();
+                this.den = den.longValue();
+                this.bigNum = null;
+                this.bigDen = null;
+            } else {
+                this.bigNum = num;
+                this.bigDen = den;
+            }
+            return this;
+        }
 
-        long total = 0;
-        for (String part : parts) {
-            Matcher matcher = pattern.matcher(part.strip());
-            if (!matcher.matches()) {
-                throw new IllegalArgumentException("Invalid input");
+        // whether a * b fits in a long, i.e. the high half is only sign bits,
+        // and is not Long.MIN_VALUE
+        private static boolean fits(long a, long b) {
+            long product = a * b;
+            return Math.multiplyHigh(a, b) == product >> 63 && product != Long.MIN_VALUE;
+        }
+
+        private static long gcdOrOther(long a, long b) {
+            if (a == 0) {
+                return b;
+            }
+            if (b == 0) {
+                return a;
             }
+            return uncheckedGcd(a, b);
+        }
+    }
 
-            Buttons buttons = new Buttons(
-                    new Frac(Long.parseLong(matcher.group(1))),
-                    new Frac(Long.parseLong(matcher.group(3))),
-                    new Frac(Long.parseLong(matcher.group(2))),
-                    new Frac(Long.parseLong(matcher.group(4))));
-            Frac targetX = new Frac(offset + Long.parseLong(matcher.group(5)));
-            Frac targetY = new Frac(offset + Long.parseLong(matcher.group(6)));
-            Vec targetVec = new Vec(targetX, targetY);
+    // token cost of the cheapest way to win one machine, 0 when it cannot be won
+    private interface Solver {
+        long cost(long ax, long ay, long bx, long by, long px, long py);
+    }
+
+    private static final long A_COST = 3;
+    private static final long B_COST = 1;
+
+    // Buttons and Vec over Frac, a new object for every intermediate value
+    private static class FracSolver implements Solver {
+        @Override
+        public long cost(long ax, long ay, long bx, long by, long px, long py) {
+            Buttons buttons = new Buttons(new Frac(ax), new Frac(bx), new Frac(ay), new Frac(by));
+            Vec targetVec = new Vec(new Frac(px), new Frac(py));
 
             if (buttons.canMakeTarget(targetVec)) {
                 Vec clicks = buttons.get(targetVec);
                 // we know these are integral (or zero)
-                total += A_COST * clicks.a.asLong() + B_COST * clicks.b.asLong();
-            } else {
-                long minPrice = Long.MAX_VALUE;
+                return A_COST * clicks.a.asLong() + B_COST * clicks.b.asLong();
+            }
 
-                Frac targetSlope = targetVec.a.mul(targetVec.b.mulInv());
-                Frac aSlope = buttons.a.mul(buttons.c.mulInv());
-                Frac bSlope = buttons.b.mul(buttons.d.mulInv());
+            long minPrice = Long.MAX_VALUE;
 
-                if (targetSlope.equals(aSlope)) {
-                    Frac ratA = targetVec.a.mul(buttons.a.mulInv());
-                    if (ratA.isIntegral()) {
-                        minPrice = Math.min(minPrice, A_COST * ratA.asLong());
-                    }
+            Frac targetSlope = targetVec.a.mul(targetVec.b.mulInv());
+            Frac aSlope = buttons.a.mul(buttons.c.mulInv());
+            Frac bSlope = buttons.b.mul(buttons.d.mulInv());
+
+            if (targetSlope.equals(aSlope)) {
+                Frac ratA = targetVec.a.mul(buttons.a.mulInv());
+                if (ratA.isIntegral()) {
+                    minPrice = Math.min(minPrice, A_COST * ratA.asLong());
                 }
-                if (targetSlope.equals(bSlope)) {
-                    Frac ratB = targetVec.b.mul(buttons.b.mulInv());
-                    if (ratB.isIntegral()) {
-                        minPrice = Math.min(minPrice, B_COST * ratB.asLong());
-                    }
+            }
+            if (targetSlope.equals(bSlope)) {
+                Frac ratB = targetVec.b.mul(buttons.b.mulInv());
+                if (ratB.isIntegral()) {
+                    minPrice = Math.min(minPrice, B_COST * ratB.asLong());
                 }
+            }
 
-                if (minPrice != Long.MAX_VALUE) {
-                    total += minPrice;
+            return minPrice != Long.MAX_VALUE ? minPrice : 0;
+        }
+    }
+
+    // The same inverse matrix solve on reused Rationals, exact for any input
+    // and allocation free unless a product overflows a long.
+    private static class RationalSolver implements Solver {
+        private final Rational det = new Rational();
+        private final Rational inv = new Rational();
+        private final Rational a = new Rational();
+        private final Rational b = new Rational();
+        private final Rational t = new Rational();
+
+        @Override
+        public long cost(long ax, long ay, long bx, long by, long px, long py) {
+            this.det.set(ax).mul(by).add(this.t.set(bx).mul(ay).negate());
+            if (this.det.isZero()) {
+                return degenerateCost(ax, ay, bx, by, px, py);
+            }
+
+            // [[by, -bx], [-ay, ax]] / det applied to the prize
+            this.inv.set(this.det).invert();
+            this.a.set(by).mul(this.inv).mul(px).add(this.t.set(bx).mul(this.inv).negate().mul(py));
+            this.b.set(ax).mul(this.inv).mul(py).add(this.t.set(ay).mul(this.inv).negate().mul(px));
+            if (!this.a.isIntegral() || !this.b.isIntegral() || this.a.isNegative() || this.b.isNegative()) {
+                return 0;
+            }
+            return A_COST * this.a.asLong() + B_COST * this.b.asLong();
+        }
+
+        // parallel buttons: the prize has to lie on their line, and then
+        // only one of the buttons is pressed
+        private long degenerateCost(long ax, long ay, long bx, long by, long px, long py) {
+            long minPrice = Long.MAX_VALUE;
+            if (sameSlope(px, py, ax, ay) && ax != 0) {
+                this.a.set(px, ax);
+                if (this.a.isIntegral() && !this.a.isNegative()) {
+                    minPrice = Math.min(minPrice, A_COST * this.a.asLong());
                 }
             }
+            if (sameSlope(px, py, bx, by) && by != 0) {
+                this.b.set(py, by);
+                if (this.b.isIntegral() && !this.b.isNegative()) {
+                    minPrice = Math.min(minPrice, B_COST * this.b.asLong());
+                }
+            }
+            return minPrice != Long.MAX_VALUE ? minPrice : 0;
+        }
+
+        private boolean sameSlope(long x1, long y1, long x2, long y2) {
+            this.a.set(x1).mul(y2);
+            this.b.set(x2).mul(y1);
+            return this.a.add(this.b.negate()).isZero();
         }
+    }
+
+    // Cramer's rule on plain longs: both press counts are an integer
+    // numerator over the determinant, so a machine is two divisibility
+    // checks and nothing is allocated. Buttons below 2^16 and prizes below
+    // 2^46 keep every product under 2^62; anything larger, and parallel
+    // buttons, go to the rational solver.
+    private static class CramerSolver implements Solver {
+        private final RationalSolver fallback = new RationalSolver();
+
+        @Override
+        public long cost(long ax, long ay, long bx, long by, long px, long py) {
+            if (((ax | ay | bx | by) >>> 16) != 0 || ((px | py) >>> 46) != 0) {
+                return this.fallback.cost(ax, ay, bx, by, px, py);
+            }
 
-        return total;
+            long det = ax * by - bx * ay;
+            if (det == 0) {
+                return this.fallback.cost(ax, ay, bx, by, px, py);
+            }
+
+            long a = by * px - bx * py;
+            long b = ax * py - ay * px;
+            if (Math.floorMod(a, det) != 0 || Math.floorMod(b, det) != 0) {
+                return 0;
+            }
+            a /= det;
+            b /= det;
+            return a < 0 || b < 0 ? 0 : A_COST * a + B_COST * b;
+        }
+    }
+
+    // Streams machines out of a file through a FileChannel, straight into
+    // six longs, without building a String per line or per block.
+    static class MachineReader implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        private long line = 1;
+        private long ax, ay, bx, by, px, py;
+
+        private MachineReader(FileChannel channel) {
+            this.channel = channel;
+            this.buf.limit(0);
+        }
+
+        // the shortest block: one digit numbers and no line break after the prize
+        static final int MIN_MACHINE_BYTES = "Button A: X+0, Y+0\nButton B: X+0, Y+0\nPrize: X=0, Y=0".length();
+
+        // an upper bound on the machines in the input
+        public long maxMachines() throws IOException {
+            return this.channel.size() / MIN_MACHINE_BYTES + 1;
+        }
+
+        public static MachineReader open(Path path) throws IOException {
+            return new MachineReader(FileChannel.open(path, StandardOpenOption.READ));
+        }
+
+        // fields of the last machine, valid until the next call to next()
+        public long ax() {
+            return this.ax;
+        }
+
+        public long ay() {
+            return this.ay;
+        }
+
+        public long bx() {
+            return this.bx;
+        }
+
+        public long by() {
+            return this.by;
+        }
+
+        public long px() {
+            return this.px;
+        }
+
+        public long py() {
+            return this.py;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+
+        // reads up to the capacity of the batch, returns how many were read
+        public int fill(Machines batch) throws IOException {
+            batch.size = 0;
+            while (batch.size < batch.ax.length && next()) {
+                int i = batch.size++;
+                batch.ax[i] = this.ax;
+                batch.ay[i] = this.ay;
+                batch.bx[i] = this.bx;
+                batch.by[i] = this.by;
+                batch.px[i] = this.px;
+                batch.py[i] = this.py;
+            }
+            return batch.size;
+        }
+
+        // reads the next three line block, returns false at the end
+        public boolean next() throws IOException {
+            while (peek() == '\r' || peek() == '\n' || peek() == ' ') {
+                skipBlank();
+            }
+            if (peek() == -1) {
+                return false;
+            }
+
+            expect("Button A: X+");
+            this.ax = number();
+            expect(", Y+");
+            this.ay = number();
+            endLine();
+            expect("Button B: X+");
+            this.bx = number();
+            expect(", Y+");
+            this.by = number();
+            endLine();
+            expect("Prize: X=");
+            this.px = number();
+            expect(", Y=");
+            this.py = number();
+            endLine();
+            return true;
+        }
+
+        private int peek() throws IOException {
+            if (!this.buf.hasRemaining()) {
+                this.buf.clear();
+                int n = this.channel.read(this.buf);
+                this.buf.flip();
+                if (n <= 0) {
+                    return -1;
+                }
+            }
+            return this.buf.get(this.buf.position());
+        }
+
+        private void skip() {
+            this.buf.position(this.buf.position() + 1);
+        }
+
+        private IllegalArgumentException malformed() {
+            return new IllegalArgumentException("Malformed input on line " + this.line);
+        }
+
+        private void expect(String literal) throws IOException {
+            for (int j = 0; j < literal.length(); ++j) {
+                if (peek() != literal.charAt(j)) {
+                    throw malformed();
+                }
+                skip();
+            }
+        }
+
+        private long number() throws IOException {
+            int c = peek();
+            if (c < '0' || c > '9') {
+                throw malformed();
+            }
+
+            long value = 0;
+            while (c >= '0' && c <= '9') {
+                if (value > (Long.MAX_VALUE - (c - '0')) / 10) {
+                    throw malformed();
+                }
+                value = value * 10 + (c - '0');
+                skip();
+                c = peek();
+            }
+            return value;
+        }
+
+        // the end of a line, trailing blanks allowed, or the end of the input
+        private void endLine() throws IOException {
+            while (peek() == ' ') {
+                skip();
+            }
+            if (peek() == '\r') {
+                skip();
+            }
+            if (peek() == '\n') {
+                skip();
+                this.line += 1;
+            } else if (peek() != -1) {
+                throw malformed();
+            }
+        }
+
+        private void skipBlank() throws IOException {
+            if (peek() == '\n') {
+                this.line += 1;
+            }
+            skip();
+        }
+    }
+
+    // machines as columns, one array per field
+    static class Machines {
+        public final long[] ax;
+        public final long[] ay;
+        public final long[] bx;
+        public final long[] by;
+        public final long[] px;
+        public final long[] py;
+        public int size = 0;
+
+        public Machines(int capacity) {
+            this.ax = new long[capacity];
+            this.ay = new long[capacity];
+            this.bx = new long[capacity];
+            this.by = new long[capacity];
+            this.px = new long[capacity];
+            this.py = new long[capacity];
+        }
+    }
+
+    // the total token cost of all machines left in the reader
+    private interface MachineCost {
+        long total(MachineReader in, long offset) throws IOException;
+    }
+
+    private static MachineCost perMachine(Solver solver) {
+        return (in, offset) -> {
+            long total = 0;
+            while (in.next()) {
+                total += solver.cost(in.ax(), in.ay(), in.bx(), in.by(), offset + in.px(), offset + in.py());
+            }
+            return total;
+        };
+    }
+
+    // Solves columns of machines in chunks on a ForkJoin pool. The inner
+    // loop is Cramer's rule with the checks folded into boolean masks, so
+    // the only branch is the rarely taken one to the rational solver for
+    // parallel buttons or values too large for exact long products.
+    static class BatchSolver implements MachineCost {
+        static final int BATCH = 1 << 20;
+        static final int CHUNK = 1 << 13;
+
+        private final ForkJoinPool pool;
+
+        public BatchSolver(int parallelism) {
+            if (parallelism <= 0) {
+                throw new IllegalArgumentException("Parallelism must be positive");
+            }
+            this.pool = new ForkJoinPool(parallelism);
+        }
+
+        @Override
+        public long total(MachineReader in, long offset) throws IOException {
+            Machines batch = new Machines((int) Math.min(BATCH, in.maxMachines()));
+            long total = 0;
+            while (in.fill(batch) > 0) {
+                total += cost(batch.ax, batch.ay, batch.bx, batch.by, batch.px, batch.py, batch.size, offset);
+            }
+            return total;
+        }
+
+        // total cost of the first count machines, offset added to every prize
+        public long cost(long[] ax, long[] ay, long[] bx, long[] by, long[] px, long[] py, int count, long offset) {
+            return this.pool.invoke(new Chunk(ax, ay, bx, by, px, py, offset, 0, count));
+        }
+
+        private static class Chunk extends RecursiveTask<Long> {
+            private static final long serialVersionUID = 1L;
+
+            private final long[] ax, ay, bx, by, px, py;
+            private final long offset;
+            private final int from;
+            private final int to;
+
+            Chunk(long[] ax, long[] ay, long[] bx, long[] by, long[] px, long[] py, long offset, int from, int to) {
+                this.ax = ax;
+                this.ay = ay;
+                this.bx = bx;
+                this.by = by;
+                this.px = px;
+                this.py = py;
+                this.offset = offset;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected Long compute() {
+                if (this.to - this.from <= CHUNK) {
+                    return solve();
+                }
+
+                int mid = (this.from + this.to) >>> 1;
+                Chunk left = new Chunk(this.ax, this.ay, this.bx, this.by, this.px, this.py, this.offset, this.from, mid);
+                Chunk right = new Chunk(this.ax, this.ay, this.bx, this.by, this.px, this.py, this.offset, mid, this.to);
+                left.fork();
+                return right.compute() + left.join();
+            }
+
+            private long solve() {
+                RationalSolver fallback = null;
+                long total = 0;
+                for (int i = this.from; i < this.to; ++i) {
+                    long xa = this.ax[i];
+                    long ya = this.ay[i];
+                    long xb = this.bx[i];
+                    long yb = this.by[i];
+                    long x = this.px[i] + this.offset;
+                    long y = this.py[i] + this.offset;
+
+                    // same bounds as CramerSolver: every product stays under 2^62
+                    long det = xa * yb - xb * ya;
+                    boolean exact = (((xa | ya | xb | yb) >>> 16) | ((x | y) >>> 46)) == 0 & det != 0;
+                    long d = exact ? det : 1;
+                    long na = yb * x - xb * y;
+                    long nb = xa * y - ya * x;
+                    long a = na / d;
+                    long b = nb / d;
+                    boolean won = exact & a * d == na & b * d == nb & (a | b) >= 0;
+                    total += won ? A_COST * a + B_COST * b : 0;
+
+                    if (!exact) {
+                        if (fallback == null) {
+                            fallback = new RationalSolver();
+                        }
+                        total += fallback.cost(xa, ya, xb, yb, x, y);
+                    }
+                }
+                return total;
+            }
+        }
+    }
+
+    public static void partOne(MachineReader in, MachineCost cost) throws IOException {
+        long offset = 0;
+        long minCost = cost.total(in, offset);
+
+        System.out.println(minCost);
+    }
+
+    public static void partTwo(MachineReader in, MachineCost cost) throws IOException {
+        long offset = Long.parseLong("10000000000000");
+        long minCost = cost.total(in, offset);
+
+        System.out.println(minCost);
     }
 }